@@ -0,0 +1,104 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.h2.table.Column;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading and binding the cells of a wide table by per-cell type switch and column name
+ * (the former copyData loop) with the precomputed {@link ColumnAccessor}s of {@link SourceReader}.
+ *
+ * The score is in cells per second.
+ *
+ * @author kawasima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColumnExtractionBenchmark {
+    private static final int ROWS = 1000;
+    private static final int COLUMNS = 40;
+
+    private Connection sourceConn;
+    private Connection snapshotConn;
+    private Statement sourceStmt;
+    private PreparedStatement insertStmt;
+    private List<Column> columns;
+
+    @Setup
+    public void setUp() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:extraction_source;DB_CLOSE_DELAY=-1");
+        sourceConn = dataSource.getConnection();
+        SyntheticTables.create(sourceConn, "WIDE", COLUMNS, ROWS, TypeMix.MIXED);
+
+        TableSnapshot snapshot = new TableSnapshot(dataSource, "jdbc:h2:mem:extraction_snapshot");
+        columns = snapshot.readMetadata(sourceConn.getMetaData(), "WIDE");
+        snapshot.dispose();
+
+        snapshotConn = DriverManager.getConnection("jdbc:h2:mem:extraction_target");
+        try (Statement stmt = snapshotConn.createStatement()) {
+            stmt.executeUpdate(SyntheticTables.ddl("WIDE", COLUMNS, TypeMix.MIXED));
+        }
+        insertStmt = snapshotConn.prepareStatement(SyntheticTables.insertSql("WIDE", COLUMNS));
+        sourceStmt = sourceConn.createStatement();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        insertStmt.close();
+        sourceStmt.close();
+        snapshotConn.close();
+        sourceConn.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS * COLUMNS)
+    public void switchByName() throws SQLException {
+        try (ResultSet rs = sourceStmt.executeQuery("SELECT * FROM WIDE")) {
+            ResultSetMetaData rsMeta = rs.getMetaData();
+            while (rs.next()) {
+                int i = 1;
+                for (Column column : columns) {
+                    Object val;
+                    switch (rsMeta.getColumnType(i)) {
+                        case Types.TIMESTAMP:
+                        case Types.DATE:
+                            val = rs.getTimestamp(column.getName());
+                            break;
+                        case Types.CLOB:
+                        case Types.NCLOB:
+                            val = rs.getString(column.getName());
+                            break;
+                        default:
+                            val = rs.getObject(column.getName());
+                    }
+                    insertStmt.setObject(i++, val);
+                }
+                insertStmt.addBatch();
+            }
+        }
+        insertStmt.clearBatch();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS * COLUMNS)
+    public void accessors() throws SQLException {
+        try (ResultSet rs = sourceStmt.executeQuery("SELECT * FROM WIDE")) {
+            SourceReader reader = new SourceReader(rs, columns);
+            Object[] values = new Object[columns.size()];
+            while (reader.next(values)) {
+                reader.bind(insertStmt, values);
+                insertStmt.addBatch();
+            }
+        }
+        insertStmt.clearBatch();
+    }
+}
@@ -0,0 +1,93 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TableSnapshot#diffFromPrevious} between two versions of a synthetic table
+ * where the given ratio of rows has changed.
+ *
+ * @author kawasima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+    private static final String TABLE = "SOURCE";
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"10", "40"})
+    public int columns;
+
+    @Param({"MIXED"})
+    public TypeMix typeMix;
+
+    @Param({"0.001", "0.01", "0.1"})
+    public double changeRatio;
+
+    @Param({"MINUS", "MERGE_JOIN"})
+    public DiffEngine diffEngine;
+
+    @Param({"FULL", "INCREMENTAL"})
+    public CaptureMode captureMode;
+
+    private Connection sourceConn;
+    private TableSnapshot snapshot;
+
+    @Setup
+    public void setUp() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:diff_source;DB_CLOSE_DELAY=-1");
+        sourceConn = dataSource.getConnection();
+        SyntheticTables.create(sourceConn, TABLE, columns, rows, typeMix);
+
+        snapshot = new TableSnapshot(dataSource, "jdbc:h2:mem:diff_snapshot");
+        snapshot.setCaptureMode(captureMode);
+        snapshot.setDiffEngine(diffEngine);
+        snapshot.take(TABLE);
+        SyntheticTables.mutate(sourceConn, TABLE, columns, rows, typeMix, changeRatio);
+        snapshot.take(TABLE);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        snapshot.dispose();
+        sourceConn.close();
+    }
+
+    @Benchmark
+    public void streaming(final Blackhole bh) {
+        snapshot.diffFromPrevious(TABLE, new DiffListener() {
+            @Override
+            public void add(Row row) {
+                bh.consume(row);
+            }
+
+            @Override
+            public void modify(Row current, Row previous) {
+                bh.consume(current);
+                bh.consume(previous);
+            }
+
+            @Override
+            public void delete(Row row) {
+                bh.consume(row);
+            }
+        });
+    }
+
+    @Benchmark
+    public Diff materialized() {
+        return snapshot.diffFromPrevious(TABLE);
+    }
+}
@@ -0,0 +1,57 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures comparing two rows cell by cell with {@link Row#diff} and by primary key with {@link Row#same}.
+ *
+ * @author kawasima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RowDiffBenchmark {
+    @Param({"10", "40"})
+    public int columns;
+
+    @Param({"1", "5"})
+    public int changedColumns;
+
+    private Row current;
+    private Row previous;
+
+    @Setup
+    public void setUp() {
+        List<Column> columnList = new ArrayList<>();
+        for (int i = 0; i < columns; i++) {
+            Column column = new Column("C" + i, Value.STRING);
+            column.setPrimaryKey(i == 0);
+            columnList.add(column);
+        }
+        current = new Row(columnList);
+        previous = new Row(columnList);
+        for (int i = 0; i < columns; i++) {
+            current.add("value-" + i);
+            previous.add(i > 0 && i <= changedColumns ? "changed-" + i : "value-" + i);
+        }
+    }
+
+    @Benchmark
+    public Row diff() {
+        return previous.diff(current);
+    }
+
+    @Benchmark
+    public boolean same() {
+        return current.same(previous);
+    }
+}
@@ -0,0 +1,92 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures capturing a synthetic table by {@link TableSnapshot#take(String)}
+ * and by {@link TableSnapshot#copyData(Connection, String)} alone.
+ *
+ * Every iteration gets a fresh snapshot database holding one previous version,
+ * so incremental captures measure a delta against it.
+ *
+ * @author kawasima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SnapshotBenchmark {
+    static final String TABLE = "SOURCE";
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"10", "40"})
+    public int columns;
+
+    @Param({"MIXED"})
+    public TypeMix typeMix;
+
+    @Param({"FULL", "INCREMENTAL"})
+    public CaptureMode captureMode;
+
+    JdbcDataSource dataSource;
+    Connection sourceConn;
+    TableSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void createSource() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:snapshot_source;DB_CLOSE_DELAY=-1");
+        sourceConn = dataSource.getConnection();
+        SyntheticTables.create(sourceConn, TABLE, columns, rows, typeMix);
+    }
+
+    @Setup(Level.Iteration)
+    public void createSnapshot() {
+        snapshot = new TableSnapshot(dataSource, "jdbc:h2:mem:snapshot_" + DATABASES.incrementAndGet());
+        snapshot.setCaptureMode(captureMode);
+        snapshot.take(TABLE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void disposeSnapshot() {
+        snapshot.dispose();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeSource() throws SQLException {
+        sourceConn.close();
+    }
+
+    @Benchmark
+    public void take() {
+        snapshot.take(TABLE);
+    }
+
+    /**
+     * A version table created ahead, so that only the copy is measured.
+     */
+    @State(Scope.Benchmark)
+    public static class CreatedTable {
+        @Setup(Level.Iteration)
+        public void createTable(SnapshotBenchmark benchmark) throws SQLException {
+            long version = benchmark.snapshot.getVersioning().getNextVersion(new String[]{TABLE});
+            benchmark.snapshot.createTable(benchmark.sourceConn, TABLE, version);
+        }
+    }
+
+    @Benchmark
+    public void copyData(CreatedTable table) throws SQLException {
+        snapshot.copyData(sourceConn, TABLE);
+    }
+}
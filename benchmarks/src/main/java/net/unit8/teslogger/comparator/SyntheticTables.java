@@ -0,0 +1,127 @@
+package net.unit8.teslogger.comparator;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/**
+ * Generates synthetic tables with an ID primary key and a configurable number and mix of columns.
+ *
+ * @author kawasima
+ */
+final class SyntheticTables {
+    private static final long EPOCH = 1400000000000L;
+
+    private SyntheticTables() {
+    }
+
+    static String ddl(String table, int columns, TypeMix mix) {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(table).append(" (ID BIGINT NOT NULL");
+        for (int i = 1; i < columns; i++) {
+            sql.append(", C").append(i).append(' ').append(typeOf(i, mix));
+        }
+        return sql.append(", PRIMARY KEY(ID))").toString();
+    }
+
+    static String insertSql(String table, int columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES(?");
+        for (int i = 1; i < columns; i++) {
+            sql.append(",?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Drops and creates the table, then fills it with the given number of rows.
+     */
+    static void create(Connection conn, String table, int columns, int rows, TypeMix mix) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + table);
+            stmt.executeUpdate(ddl(table, columns, mix));
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(insertSql(table, columns))) {
+            for (int id = 0; id < rows; id++) {
+                bind(stmt, id, columns, mix, 0);
+                stmt.addBatch();
+                if (id % 1000 == 999) stmt.executeBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Changes the given ratio of the rows created by {@link #create}:
+     * half of them are updated, a quarter deleted, and a quarter inserted with new IDs.
+     */
+    static void mutate(Connection conn, String table, int columns, int rows, TypeMix mix, double changeRatio)
+            throws SQLException {
+        int changes = (int) Math.round(rows * changeRatio);
+        if (changes == 0) return;
+        int step = Math.max(1, rows / changes);
+        int updates = changes / 2;
+        int deletes = changes / 4;
+        int inserts = changes - updates - deletes;
+
+        try (PreparedStatement delete = conn.prepareStatement("DELETE FROM " + table + " WHERE ID = ?");
+             PreparedStatement insert = conn.prepareStatement(insertSql(table, columns))) {
+            for (int n = 0; n < updates + deletes; n++) {
+                long id = (long) n * step % rows;
+                delete.setLong(1, id);
+                delete.executeUpdate();
+                if (n < updates) {
+                    bind(insert, id, columns, mix, 1);
+                    insert.executeUpdate();
+                }
+            }
+            for (int n = 0; n < inserts; n++) {
+                bind(insert, rows + n, columns, mix, 1);
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Binds the values of a row. Different revisions give different values for the same ID.
+     */
+    static void bind(PreparedStatement stmt, long id, int columns, TypeMix mix, int revision) throws SQLException {
+        stmt.setLong(1, id);
+        for (int i = 1; i < columns; i++) {
+            long seed = id * 31 + i + revision * 7919L;
+            switch (typeOf(i, mix)) {
+                case "INT":
+                    stmt.setInt(i + 1, (int) (seed % 100000));
+                    break;
+                case "BIGINT":
+                    stmt.setLong(i + 1, seed * 1000003L);
+                    break;
+                case "DECIMAL(12,2)":
+                    stmt.setBigDecimal(i + 1, BigDecimal.valueOf(seed % 10000000, 2));
+                    break;
+                case "TIMESTAMP":
+                    stmt.setTimestamp(i + 1, new Timestamp(EPOCH + seed * 1000L));
+                    break;
+                default:
+                    stmt.setString(i + 1, "value-" + seed);
+            }
+        }
+    }
+
+    private static String typeOf(int column, TypeMix mix) {
+        switch (mix) {
+            case NUMERIC:
+                return column % 3 == 0 ? "DECIMAL(12,2)" : column % 3 == 1 ? "INT" : "BIGINT";
+            case STRING:
+                return "VARCHAR(50)";
+            default:
+                switch (column % 4) {
+                    case 0: return "TIMESTAMP";
+                    case 1: return "INT";
+                    case 2: return "VARCHAR(50)";
+                    default: return "DECIMAL(12,2)";
+                }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * The column types of a synthetic table, besides its BIGINT primary key.
+ *
+ * @author kawasima
+ */
+public enum TypeMix {
+    /** INT, BIGINT and DECIMAL columns. */
+    NUMERIC,
+    /** VARCHAR columns. */
+    STRING,
+    /** INT, VARCHAR, DECIMAL and TIMESTAMP columns. */
+    MIXED
+}
@@ -0,0 +1,72 @@
+package net.unit8.teslogger.comparator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the version lookups of {@link Versioning} with many tables and versions recorded.
+ *
+ * @author kawasima
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VersioningBenchmark {
+    @Param({"10", "100"})
+    public int tables;
+
+    @Param({"10", "1000"})
+    public int versions;
+
+    private Connection conn;
+    private Versioning versioning;
+    private String[] tableNames;
+    private int next;
+
+    @Setup
+    public void setUp() throws SQLException {
+        org.h2.Driver.load();
+        conn = DriverManager.getConnection("jdbc:h2:mem:versioning");
+        versioning = new Versioning(conn);
+        tableNames = new String[tables];
+        for (int i = 0; i < tables; i++) {
+            tableNames[i] = "T" + i;
+        }
+        for (int v = 0; v < versions; v++) {
+            versioning.getNextVersion(tableNames);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    private String nextTable() {
+        next = (next + 1) % tables;
+        return tableNames[next];
+    }
+
+    @Benchmark
+    public String getCurrentVersion() {
+        return versioning.getCurrentVersion(nextTable());
+    }
+
+    @Benchmark
+    public String getPreviousVersion() {
+        return versioning.getPreviousVersion(nextTable());
+    }
+
+    @Benchmark
+    public TableChecksum getChecksum() {
+        String tableName = nextTable();
+        return versioning.getChecksum(tableName, versioning.getCurrentVersionId(tableName));
+    }
+}
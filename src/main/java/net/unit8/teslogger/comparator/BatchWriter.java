@@ -0,0 +1,135 @@
+package net.unit8.teslogger.comparator;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Adds bound rows of a prepared statement to JDBC batches.
+ *
+ * A batch is executed when it reaches the row count or, if set, the byte size limit,
+ * and the connection is committed every commit interval rows.
+ *
+ * @author kawasima
+ */
+class BatchWriter {
+    private final Connection conn;
+    private final PreparedStatement stmt;
+    private final Policy policy;
+    private final CopyStatistics statistics;
+
+    private int batchRows;
+    private long batchRowBytes;
+    private long uncommittedRows;
+
+    BatchWriter(Connection conn, PreparedStatement stmt, Policy policy, CopyStatistics statistics) {
+        this.conn = conn;
+        this.stmt = stmt;
+        this.policy = policy;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Adds the row currently bound to the statement.
+     *
+     * @param values the values bound, used for estimating the batch size
+     */
+    void add(Object[] values) throws SQLException {
+        long rowBytes = estimateBytes(values);
+        stmt.addBatch();
+        statistics.addRow(rowBytes);
+        batchRows++;
+        batchRowBytes += rowBytes;
+        uncommittedRows++;
+
+        if (batchRows >= policy.batchSize || (policy.batchBytes > 0 && batchRowBytes >= policy.batchBytes)) {
+            executeBatch();
+        }
+        if (policy.commitInterval > 0 && uncommittedRows >= policy.commitInterval) {
+            executeBatch();
+            commit();
+        }
+    }
+
+    /**
+     * Executes the rest of the batch and commits.
+     */
+    void finish() throws SQLException {
+        executeBatch();
+        commit();
+    }
+
+    /**
+     * Executes the rest of the batch without committing, for writers sharing a transaction.
+     */
+    void flush() throws SQLException {
+        executeBatch();
+    }
+
+    private void executeBatch() throws SQLException {
+        if (batchRows == 0) return;
+        long started = System.nanoTime();
+        stmt.executeBatch();
+        statistics.addBatch(batchRows, batchRowBytes, System.nanoTime() - started);
+        batchRows = 0;
+        batchRowBytes = 0;
+    }
+
+    private void commit() throws SQLException {
+        long started = System.nanoTime();
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+        statistics.addCommit(System.nanoTime() - started);
+        uncommittedRows = 0;
+    }
+
+    static long estimateBytes(Object[] values) throws SQLException {
+        long bytes = 0;
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            } else if (value instanceof String) {
+                bytes += 2L * ((String) value).length();
+            } else if (value instanceof byte[]) {
+                bytes += ((byte[]) value).length;
+            } else if (value instanceof Blob) {
+                bytes += ((Blob) value).length();
+            } else if (value instanceof Clob) {
+                bytes += 2L * ((Clob) value).length();
+            } else {
+                bytes += 16;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * When batches are executed and committed.
+     */
+    static class Policy {
+        final int batchSize;
+        final long batchBytes;
+        final int commitInterval;
+
+        /**
+         * @param batchSize      the maximum number of rows in a batch
+         * @param batchBytes     the maximum estimated size of a batch, or 0 for no limit
+         * @param commitInterval the number of rows between commits, or 0 to commit only at the end
+         */
+        Policy(int batchSize, long batchBytes, int commitInterval) {
+            this.batchSize = batchSize;
+            this.batchBytes = batchBytes;
+            this.commitInterval = commitInterval;
+        }
+
+        /**
+         * Returns this policy without intermediate commits, for writes made in a single transaction.
+         */
+        Policy withoutCommits() {
+            return commitInterval == 0 ? this : new Policy(batchSize, batchBytes, 0);
+        }
+    }
+}
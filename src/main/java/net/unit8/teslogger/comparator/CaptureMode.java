@@ -0,0 +1,26 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * How a snapshot of a table is stored.
+ *
+ * @author kawasima
+ */
+public enum CaptureMode {
+    /** Every version is a full copy of the table. */
+    FULL,
+    /**
+     * The first version is a full copy, and later versions store only the rows
+     * inserted, updated and deleted since the previous version.
+     * Tables without a primary key are always copied in full.
+     */
+    INCREMENTAL,
+    /**
+     * Like {@link #INCREMENTAL}, but the changes are read from a journal table filled by a trigger
+     * on the source table, so later versions don't scan the source table.
+     * The journal and the trigger are installed when the full copy is taken.
+     * Only H2 and Oracle sources are supported, and with H2 the trigger class must be
+     * on the classpath of the database. Tables of other databases and tables with a row filter
+     * are captured incrementally.
+     */
+    TRIGGER
+}
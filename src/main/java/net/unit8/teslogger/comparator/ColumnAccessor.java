@@ -0,0 +1,188 @@
+package net.unit8.teslogger.comparator;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Reads a column value from a source result set and binds it to a snapshot statement,
+ * using the JDBC getter and setter matching the column type.
+ *
+ * Accessors are chosen once per table, so the per-row copy has no type switch and no name lookup.
+ *
+ * @author kawasima
+ */
+abstract class ColumnAccessor {
+    abstract Object get(ResultSet rs, int index) throws SQLException;
+
+    abstract void set(PreparedStatement stmt, int index, Object value) throws SQLException;
+
+    static ColumnAccessor of(int sqlType) {
+        switch (sqlType) {
+            case Types.TIMESTAMP:
+            case Types.DATE:
+                return TIMESTAMP;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.CLOB:
+            case Types.NCLOB:
+                return STRING;
+            case Types.BIGINT:
+                return LONG;
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return INT;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return DECIMAL;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return DOUBLE;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return BOOLEAN;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return BYTES;
+            default:
+                return OBJECT;
+        }
+    }
+
+    static final ColumnAccessor TIMESTAMP = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            return rs.getTimestamp(index);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            stmt.setTimestamp(index, (Timestamp) value);
+        }
+    };
+
+    static final ColumnAccessor STRING = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            return rs.getString(index);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            stmt.setString(index, (String) value);
+        }
+    };
+
+    static final ColumnAccessor LONG = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            long value = rs.getLong(index);
+            return rs.wasNull() ? null : Long.valueOf(value);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            if (value == null) {
+                stmt.setNull(index, Types.BIGINT);
+            } else {
+                stmt.setLong(index, (Long) value);
+            }
+        }
+    };
+
+    static final ColumnAccessor INT = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            int value = rs.getInt(index);
+            return rs.wasNull() ? null : Integer.valueOf(value);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            if (value == null) {
+                stmt.setNull(index, Types.INTEGER);
+            } else {
+                stmt.setInt(index, (Integer) value);
+            }
+        }
+    };
+
+    static final ColumnAccessor DECIMAL = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            return rs.getBigDecimal(index);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            stmt.setBigDecimal(index, (BigDecimal) value);
+        }
+    };
+
+    static final ColumnAccessor DOUBLE = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            double value = rs.getDouble(index);
+            return rs.wasNull() ? null : Double.valueOf(value);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            if (value == null) {
+                stmt.setNull(index, Types.DOUBLE);
+            } else {
+                stmt.setDouble(index, (Double) value);
+            }
+        }
+    };
+
+    static final ColumnAccessor BOOLEAN = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            boolean value = rs.getBoolean(index);
+            return rs.wasNull() ? null : Boolean.valueOf(value);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            if (value == null) {
+                stmt.setNull(index, Types.BOOLEAN);
+            } else {
+                stmt.setBoolean(index, (Boolean) value);
+            }
+        }
+    };
+
+    static final ColumnAccessor BYTES = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            return rs.getBytes(index);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            stmt.setBytes(index, (byte[]) value);
+        }
+    };
+
+    static final ColumnAccessor OBJECT = new ColumnAccessor() {
+        @Override
+        Object get(ResultSet rs, int index) throws SQLException {
+            return rs.getObject(index);
+        }
+
+        @Override
+        void set(PreparedStatement stmt, int index, Object value) throws SQLException {
+            stmt.setObject(index, value);
+        }
+    };
+}
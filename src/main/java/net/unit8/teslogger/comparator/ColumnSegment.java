@@ -0,0 +1,210 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The values of one column of a version, dictionary and run-length encoded.
+ *
+ * The layout is
+ * <pre>
+ *   long rows
+ *   long runs, { long runEnd, long entryOffset } * runs
+ *   { int length (-1 for null), byte[length] UTF-8 } * entries
+ * </pre>
+ * Each run refers to its entry by the offset of the entry after the runs,
+ * so an entry is decoded only when a row of its run is read.
+ *
+ * @author kawasima
+ */
+class ColumnSegment {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Object NULL_KEY = new Object();
+    private static final int HEADER_SIZE = 16;
+    private static final int RUN_SIZE = 16;
+
+    private final MappedFile file;
+    private final long rows;
+    private final long runs;
+    private final long entriesStart;
+
+    private long run = -1;
+    private long runStart;
+    private long runEnd;
+    private long entryOffset = -1;
+    private String entry;
+
+    /**
+     * Opens a segment. Nothing but the header is read until the rows are.
+     * A segment keeps the position of the last row read, so it isn't safe for concurrent use.
+     */
+    ColumnSegment(MappedFile file) {
+        this.file = file;
+        rows = file.size() == 0 ? 0 : file.getLong(0);
+        runs = file.size() == 0 ? 0 : file.getLong(8);
+        entriesStart = HEADER_SIZE + runs * RUN_SIZE;
+    }
+
+    long size() {
+        return rows;
+    }
+
+    /**
+     * Unmaps the segment file.
+     */
+    void close() {
+        file.close();
+    }
+
+    String get(long row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of " + rows);
+        }
+        if (row < runStart || row >= runEnd) {
+            // Rows are mostly read in order, so try the next run before searching
+            seek(row >= runEnd && run + 1 < runs && row < runEnd(run + 1) ? run + 1 : findRun(row));
+        }
+        long offset = file.getLong(HEADER_SIZE + run * RUN_SIZE + 8);
+        if (offset != entryOffset) {
+            entry = readEntry(entriesStart + offset);
+            entryOffset = offset;
+        }
+        return entry;
+    }
+
+    private void seek(long run) {
+        this.run = run;
+        runStart = run == 0 ? 0 : runEnd(run - 1);
+        runEnd = runEnd(run);
+    }
+
+    private long runEnd(long run) {
+        return file.getLong(HEADER_SIZE + run * RUN_SIZE);
+    }
+
+    /**
+     * Finds the first run ending after the row.
+     */
+    private long findRun(long row) {
+        long low = 0;
+        long high = runs - 1;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (runEnd(mid) <= row) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String readEntry(long position) {
+        int length = file.getInt(position);
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        file.read(position + 4, bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Encodes the values of a column as they are added, into temporary files of the directory.
+     *
+     * Values already in the dictionary are referred to by their entries. The dictionary keeps
+     * a bounded number of distinct values, so a column of mostly distinct values
+     * is written with its repeated values stored again rather than held in memory.
+     */
+    static class Writer implements Closeable {
+        private static final int MAX_DICTIONARY = 1 << 16;
+
+        private final Map<Object, Long> offsets = new HashMap<>();
+        private final File runsFile;
+        private final File entriesFile;
+        private final DataOutputStream runsOut;
+        private final DataOutputStream entriesOut;
+        private long entriesSize;
+        private long rows;
+        private long runs;
+        private Object runKey;
+        private long runOffset;
+
+        Writer(File directory) throws IOException {
+            runsFile = File.createTempFile("segment", ".runs", directory);
+            entriesFile = File.createTempFile("segment", ".entries", directory);
+            runsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runsFile)));
+            entriesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(entriesFile)));
+        }
+
+        void add(String value) throws IOException {
+            Object key = value == null ? NULL_KEY : value;
+            if (rows > 0 && key.equals(runKey)) {
+                rows++;
+                return;
+            }
+            endRun();
+            Long offset = offsets.get(key);
+            if (offset == null) {
+                offset = entriesSize;
+                if (value == null) {
+                    entriesOut.writeInt(-1);
+                    entriesSize += 4;
+                } else {
+                    byte[] bytes = value.getBytes(UTF_8);
+                    entriesOut.writeInt(bytes.length);
+                    entriesOut.write(bytes);
+                    entriesSize += 4 + bytes.length;
+                }
+                if (offsets.size() < MAX_DICTIONARY) {
+                    offsets.put(key, offset);
+                }
+            }
+            runKey = key;
+            runOffset = offset;
+            rows++;
+        }
+
+        private void endRun() throws IOException {
+            if (rows > 0) {
+                runsOut.writeLong(rows);
+                runsOut.writeLong(runOffset);
+                runs++;
+            }
+        }
+
+        /**
+         * Writes the segment to the stream and removes the temporary files.
+         */
+        void finish(OutputStream out) throws IOException {
+            endRun();
+            runsOut.close();
+            entriesOut.close();
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeLong(rows);
+            header.writeLong(runs);
+            header.flush();
+            Files.copy(runsFile.toPath(), out);
+            Files.copy(entriesFile.toPath(), out);
+            close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                runsOut.close();
+                entriesOut.close();
+            } finally {
+                runsFile.delete();
+                entriesFile.delete();
+            }
+        }
+    }
+}
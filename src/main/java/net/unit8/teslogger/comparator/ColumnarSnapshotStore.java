@@ -0,0 +1,454 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.util.IOUtils;
+import org.h2.util.StringUtils;
+import org.h2.value.CompareMode;
+import org.h2.value.DataType;
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+import org.h2.value.ValueString;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Stores each version of a table as columns in files.
+ *
+ * Every column is dictionary and run-length encoded into a segment file,
+ * and the row hashes are kept in a separate file. The files are written as the rows arrive,
+ * and are named by the digest of their contents, so a column which hasn't changed since
+ * a previous version is stored once and referenced by both versions.
+ * A version is described by a manifest listing its files, and the files are
+ * read through memory-mapped buffers.
+ *
+ * <pre>
+ *   directory/TABLE/version.properties
+ *   directory/TABLE/digest.col
+ *   directory/TABLE/digest.hash
+ * </pre>
+ *
+ * When the rows of both versions were written in primary key order, they are diffed by
+ * a merge join of the keys. Otherwise the sorted row hashes of the versions are merged,
+ * and the differing rows are read back and paired in bounded batches, as {@link HashDiffer} does.
+ *
+ * @author kawasima
+ */
+public class ColumnarSnapshotStore implements SnapshotStore {
+    private static final String MANIFEST_SUFFIX = ".properties";
+    private static final CompareMode COMPARE_MODE = CompareMode.getInstance(null, 0);
+
+    private final File directory;
+    private int sortBufferSize = 1 << 20;
+
+    public ColumnarSnapshotStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Sets the number of row hashes sorted in memory when the versions can't be merge-joined,
+     * which is also about the number of differing rows paired in memory at a time.
+     *
+     * @param sortBufferSize the number of hashes, 1M by default
+     */
+    public void setSortBufferSize(int sortBufferSize) {
+        if (sortBufferSize < 1) throw new IllegalArgumentException("sortBufferSize must be positive.");
+        this.sortBufferSize = sortBufferSize;
+    }
+
+    @Override
+    public SnapshotStore.Writer createWriter(String tableName, long version, List<Column> columns) throws IOException {
+        return new ColumnarWriter(tableDirectory(tableName), version, columns);
+    }
+
+    @Override
+    public void diff(String tableName, long fromVersion, long toVersion, List<Column> columns,
+                     ComparisonPolicy policy, DiffListener listener) throws IOException {
+        File tableDirectory = tableDirectory(tableName);
+        try (StoredVersion from = new StoredVersion(tableDirectory, fromVersion);
+             StoredVersion to   = new StoredVersion(tableDirectory, toVersion)) {
+            if (from.hashFile.equals(to.hashFile)) return;
+
+            RowSchema schema = new RowSchema(columns, policy);
+            int[] keyIndex = primaryKeyIndex(columns);
+            if (keyIndex.length > 0 && from.sorted && to.sorted) {
+                mergeJoin(from, to, columns, keyIndex, schema, listener);
+            } else {
+                diffByHash(from, to, keyIndex, schema, listener);
+            }
+        }
+    }
+
+    /**
+     * Walks both versions in key order. Rows with the same key are compared by their hashes,
+     * and by their values when the hashes differ.
+     */
+    private void mergeJoin(StoredVersion from, StoredVersion to, List<Column> columns, int[] keyIndex,
+                           RowSchema schema, DiffListener listener) {
+        long fromRow = 0;
+        long toRow = 0;
+        Value[] fromKey = from.key(fromRow, columns, keyIndex);
+        Value[] toKey = to.key(toRow, columns, keyIndex);
+        while (fromKey != null || toKey != null) {
+            int cmp = fromKey == null ? 1 : toKey == null ? -1 : compareKey(fromKey, toKey);
+            if (cmp < 0) {
+                listener.delete(from.row(fromRow, schema));
+                fromKey = from.key(++fromRow, columns, keyIndex);
+            } else if (cmp > 0) {
+                listener.add(to.row(toRow, schema));
+                toKey = to.key(++toRow, columns, keyIndex);
+            } else {
+                if (from.hash(fromRow) != to.hash(toRow)) {
+                    Row current = to.row(toRow, schema);
+                    Row previous = from.row(fromRow, schema);
+                    if (!current.sameValues(previous)) {
+                        listener.modify(current, previous);
+                    }
+                }
+                fromKey = from.key(++fromRow, columns, keyIndex);
+                toKey = to.key(++toRow, columns, keyIndex);
+            }
+        }
+    }
+
+    /**
+     * Matches the rows by their content hashes, and pairs the unmatched rows by their keys.
+     */
+    private void diffByHash(StoredVersion from, StoredVersion to, int[] keyIndex,
+                            RowSchema schema, DiffListener listener) throws IOException {
+        try {
+            new HashDiffer(keyIndex, sortBufferSize).diff(from.version(schema), to.version(schema), listener);
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    static int[] primaryKeyIndex(List<Column> columns) {
+        int n = 0;
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) n++;
+        }
+        int[] keyIndex = new int[n];
+        n = 0;
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isPrimaryKey()) keyIndex[n++] = i;
+        }
+        return keyIndex;
+    }
+
+    /**
+     * Converts the stored text of a key column to a value ordered by the type of the column.
+     */
+    static Value keyValue(String text, Column column) {
+        return text == null ? ValueNull.INSTANCE : ValueString.get(text).convertTo(column.getType());
+    }
+
+    static int compareKey(Value[] key1, Value[] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            int cmp = key1[i].compareTypeSave(key2[i], COMPARE_MODE);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * Removes the manifest of the version, and the files no other version refers to.
+     */
+    @Override
+    public void drop(String tableName, long version) throws IOException {
+        File tableDirectory = tableDirectory(tableName);
+        File manifest = manifestFile(tableDirectory, version);
+        if (!manifest.exists()) return;
+        if (!manifest.delete()) {
+            throw new IOException("Can't delete " + manifest);
+        }
+
+        File[] files = tableDirectory.listFiles();
+        if (files == null) return;
+        Set<String> referenced = new HashSet<>();
+        for (File file : files) {
+            if (file.getName().endsWith(MANIFEST_SUFFIX)) {
+                referenced.addAll(filesOf(readManifest(file)));
+            }
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(MANIFEST_SUFFIX) && !referenced.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private File tableDirectory(String tableName) {
+        return new File(directory, tableName);
+    }
+
+    private static File manifestFile(File tableDirectory, long version) {
+        return new File(tableDirectory, version + MANIFEST_SUFFIX);
+    }
+
+    private static Properties readManifest(File manifest) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(manifest)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private static Set<String> filesOf(Properties manifest) {
+        Set<String> files = new HashSet<>();
+        for (String name : manifest.stringPropertyNames()) {
+            if (name.equals("hashes") || name.startsWith("column.")) {
+                files.add(manifest.getProperty(name));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Converts a source value to the text a snapshot table would return for it.
+     */
+    static String toText(Object value, Column column) throws IOException {
+        if (value == null) return null;
+        try {
+            if (value instanceof Blob) {
+                try (InputStream in = ((Blob) value).getBinaryStream()) {
+                    return StringUtils.convertBytesToHex(IOUtils.readBytesAndClose(in, -1));
+                }
+            } else if (value instanceof Clob) {
+                try (Reader in = ((Clob) value).getCharacterStream()) {
+                    return IOUtils.readStringAndClose(in, -1);
+                }
+            }
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        }
+        return DataType.convertToValue(null, value, column.getType()).convertTo(column.getType()).getString();
+    }
+
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the content to a file named by its digest, unless the file already exists, and returns its name.
+     */
+    private static String writeContent(File tableDirectory, String suffix, Content content) throws IOException {
+        MessageDigest digest = sha1();
+        File tmp = File.createTempFile("content", ".tmp", tableDirectory);
+        try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)), digest)) {
+            content.writeTo(out);
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        return moveContent(tmp, digest, suffix);
+    }
+
+    /**
+     * Renames a written file by the digest of its contents, or removes it if a file has the same contents.
+     */
+    private static String moveContent(File tmp, MessageDigest digest, String suffix) throws IOException {
+        String name = String.format("%040x", new BigInteger(1, digest.digest())) + suffix;
+        File file = new File(tmp.getParentFile(), name);
+        if (!file.exists() && !tmp.renameTo(file) && !file.exists()) {
+            tmp.delete();
+            throw new IOException("Can't write " + file);
+        }
+        tmp.delete();
+        return name;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Streams the rows to the segment files and the hash file as they are written.
+     * Only the dictionaries of the segments are held in memory.
+     */
+    private static class ColumnarWriter implements SnapshotStore.Writer {
+        private final File tableDirectory;
+        private final long version;
+        private final List<Column> columns;
+        private final ColumnSegment.Writer[] segments;
+        private final File hashFile;
+        private final MessageDigest hashDigest = sha1();
+        private final DataOutputStream hashes;
+        private final TableChecksum checksum = new TableChecksum();
+        private final int[] keyIndex;
+        private Value[] lastKey;
+        private boolean sorted = true;
+
+        ColumnarWriter(File tableDirectory, long version, List<Column> columns) throws IOException {
+            if (!tableDirectory.isDirectory() && !tableDirectory.mkdirs()) {
+                throw new IOException("Can't create " + tableDirectory);
+            }
+            this.tableDirectory = tableDirectory;
+            this.version = version;
+            this.columns = columns;
+            keyIndex = primaryKeyIndex(columns);
+            segments = new ColumnSegment.Writer[columns.size()];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new ColumnSegment.Writer(tableDirectory);
+            }
+            hashFile = File.createTempFile("hashes", ".tmp", tableDirectory);
+            hashes = new DataOutputStream(new DigestOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(hashFile)), hashDigest));
+        }
+
+        @Override
+        public void write(Object[] values, long hash) throws IOException {
+            Value[] key = sorted && keyIndex.length > 0 ? new Value[keyIndex.length] : null;
+            for (int i = 0, k = 0; i < segments.length; i++) {
+                String text = toText(values[i], columns.get(i));
+                segments[i].add(text);
+                if (key != null && k < keyIndex.length && keyIndex[k] == i) {
+                    key[k++] = keyValue(text, columns.get(i));
+                }
+            }
+            if (key != null) {
+                // Rows out of key order are diffed by their hashes instead of by a merge join
+                sorted = lastKey == null || compareKey(lastKey, key) < 0;
+                lastKey = key;
+            }
+            hashes.writeLong(hash);
+            checksum.add(hash);
+        }
+
+        @Override
+        public TableChecksum finish() throws IOException {
+            Properties manifest = new Properties();
+            manifest.setProperty("rows", Long.toString(checksum.getRowCount()));
+            manifest.setProperty("sorted", Boolean.toString(sorted && keyIndex.length > 0));
+            for (int i = 0; i < segments.length; i++) {
+                final ColumnSegment.Writer segment = segments[i];
+                manifest.setProperty("column." + i, writeContent(tableDirectory, ".col", segment::finish));
+            }
+            hashes.close();
+            manifest.setProperty("hashes", moveContent(hashFile, hashDigest, ".hash"));
+
+            File tmp = File.createTempFile("version" + version, ".tmp", tableDirectory);
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                manifest.store(out, null);
+            }
+            File file = manifestFile(tableDirectory, version);
+            if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Can't write " + file);
+            }
+            return checksum;
+        }
+    }
+
+    /**
+     * A version opened for reading. The segments are decoded lazily as the rows are read,
+     * and their files are unmapped when the version is closed.
+     */
+    private static class StoredVersion implements Closeable {
+        final long rows;
+        final boolean sorted;
+        final String hashFile;
+        final ColumnSegment[] segments;
+        final MappedFile hashes;
+
+        StoredVersion(File tableDirectory, long version) throws IOException {
+            File manifestFile = manifestFile(tableDirectory, version);
+            if (!manifestFile.exists()) {
+                throw new IOException("No such version: " + manifestFile);
+            }
+            Properties manifest = readManifest(manifestFile);
+            rows = Long.parseLong(manifest.getProperty("rows"));
+            sorted = Boolean.parseBoolean(manifest.getProperty("sorted"));
+            hashFile = manifest.getProperty("hashes");
+            hashes = new MappedFile(new File(tableDirectory, hashFile));
+            List<ColumnSegment> columnSegments = new ArrayList<>();
+            try {
+                for (int i = 0; manifest.containsKey("column." + i); i++) {
+                    columnSegments.add(new ColumnSegment(new MappedFile(new File(tableDirectory, manifest.getProperty("column." + i)))));
+                }
+            } catch (IOException | RuntimeException ex) {
+                hashes.close();
+                for (ColumnSegment segment : columnSegments) {
+                    segment.close();
+                }
+                throw ex;
+            }
+            segments = columnSegments.toArray(new ColumnSegment[columnSegments.size()]);
+        }
+
+        @Override
+        public void close() {
+            hashes.close();
+            for (ColumnSegment segment : segments) {
+                segment.close();
+            }
+        }
+
+        long hash(long row) {
+            return hashes.getLong(row * 8);
+        }
+
+        /**
+         * Returns the key of the row, or null past the last row.
+         */
+        Value[] key(long row, List<Column> columns, int[] keyIndex) {
+            if (row >= rows) return null;
+            Value[] key = new Value[keyIndex.length];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = keyValue(segments[keyIndex[i]].get(row), columns.get(keyIndex[i]));
+            }
+            return key;
+        }
+
+        Row row(long row, RowSchema schema) {
+            Row r = new Row(schema);
+            for (int i = 0; i < segments.length; i++) {
+                r.add(schema.parse(i, segments[i].get(row)));
+            }
+            return r;
+        }
+
+        /**
+         * Returns the version as read by a {@link HashDiffer}.
+         */
+        HashDiffer.Version version(final RowSchema schema) {
+            return new HashDiffer.Version() {
+                @Override
+                public void hashes(SortedHashes sorted) throws IOException {
+                    for (long row = 0; row < rows; row++) {
+                        sorted.add(hash(row));
+                    }
+                }
+
+                @Override
+                public void rows(HashDiffer.RowFilter filter) {
+                    for (long row = 0; row < rows; row++) {
+                        long hash = hash(row);
+                        if (filter.accept(hash)) {
+                            filter.row(hash, row(row, schema));
+                        }
+                    }
+                }
+            };
+        }
+    }
+}
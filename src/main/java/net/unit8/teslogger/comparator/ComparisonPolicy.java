@@ -0,0 +1,142 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Date;
+
+/**
+ * How the values of the columns are compared when two rows are diffed.
+ *
+ * Values are compared by the H2 type of their column rather than as text, so that
+ * {@code 1.0} and {@code 1.00} are the same number. Numbers may differ by a tolerance,
+ * and timestamps are compared to a number of fractional-second digits.
+ *
+ * @author kawasima
+ */
+public class ComparisonPolicy {
+    private static final int[] POWERS_OF_TEN = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000
+    };
+
+    private BigDecimal numericTolerance = BigDecimal.ZERO;
+    private double doubleTolerance = 0.0;
+    private int timestampPrecision = 9;
+
+    public BigDecimal getNumericTolerance() {
+        return numericTolerance;
+    }
+
+    /**
+     * Sets the greatest absolute difference between numbers which are reported as unchanged.
+     *
+     * @param numericTolerance the tolerance, 0 by default
+     */
+    public void setNumericTolerance(BigDecimal numericTolerance) {
+        if (numericTolerance.signum() < 0) throw new IllegalArgumentException("numericTolerance must not be negative.");
+        this.numericTolerance = numericTolerance;
+        this.doubleTolerance = numericTolerance.doubleValue();
+    }
+
+    public int getTimestampPrecision() {
+        return timestampPrecision;
+    }
+
+    /**
+     * Sets the number of fractional-second digits compared in timestamps.
+     *
+     * @param timestampPrecision 0 to compare seconds, up to 9, the default, to compare nanoseconds
+     */
+    public void setTimestampPrecision(int timestampPrecision) {
+        if (timestampPrecision < 0 || timestampPrecision > 9) {
+            throw new IllegalArgumentException("timestampPrecision must be between 0 and 9.");
+        }
+        this.timestampPrecision = timestampPrecision;
+    }
+
+    /**
+     * Compares two values of a column.
+     *
+     * @param type the H2 value type of the column
+     * @return true or false, or null if the values aren't comparable by their type
+     */
+    Boolean same(int type, Object v1, Object v2) {
+        if (v1 instanceof Value) v1 = v1 == ValueNull.INSTANCE ? null : ((Value) v1).getObject();
+        if (v2 instanceof Value) v2 = v2 == ValueNull.INSTANCE ? null : ((Value) v2).getObject();
+        if (v1 == null || v2 == null) return v1 == v2;
+
+        switch (type) {
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+                if (isIntegral(v1) && isIntegral(v2)) {
+                    long diff = Math.abs(((Number) v1).longValue() - ((Number) v2).longValue());
+                    return diff == 0 || numericTolerance.signum() > 0
+                            && BigDecimal.valueOf(diff).compareTo(numericTolerance) <= 0;
+                }
+                return sameDecimal(v1, v2);
+            case Value.DOUBLE:
+            case Value.FLOAT:
+                if (v1 instanceof Number && v2 instanceof Number
+                        && !(v1 instanceof BigDecimal) && !(v2 instanceof BigDecimal)) {
+                    double d1 = ((Number) v1).doubleValue();
+                    double d2 = ((Number) v2).doubleValue();
+                    return Double.compare(d1, d2) == 0 || Math.abs(d1 - d2) <= doubleTolerance;
+                }
+                return sameDecimal(v1, v2);
+            case Value.DECIMAL:
+                return sameDecimal(v1, v2);
+            case Value.TIMESTAMP:
+                if (v1 instanceof Timestamp && v2 instanceof Timestamp) {
+                    Timestamp t1 = (Timestamp) v1;
+                    Timestamp t2 = (Timestamp) v2;
+                    int unit = POWERS_OF_TEN[9 - timestampPrecision];
+                    return Math.floorDiv(t1.getTime(), 1000L) == Math.floorDiv(t2.getTime(), 1000L)
+                            && t1.getNanos() / unit == t2.getNanos() / unit;
+                }
+                return null;
+            case Value.DATE:
+            case Value.TIME:
+                if (v1 instanceof Date && v2 instanceof Date) {
+                    return ((Date) v1).getTime() == ((Date) v2).getTime();
+                }
+                return null;
+            case Value.BLOB:
+            case Value.CLOB:
+                if (v1 instanceof LobHash && v2 instanceof LobHash) {
+                    return v1.equals(v2);
+                }
+                return null;
+            default:
+                return v1.getClass() == v2.getClass() ? v1.equals(v2) : null;
+        }
+    }
+
+    private static boolean isIntegral(Object v) {
+        return v instanceof Long || v instanceof Integer || v instanceof Short || v instanceof Byte;
+    }
+
+    private Boolean sameDecimal(Object v1, Object v2) {
+        BigDecimal d1 = toBigDecimal(v1);
+        BigDecimal d2 = toBigDecimal(v2);
+        if (d1 == null || d2 == null) return null;
+        int cmp = d1.compareTo(d2);
+        return cmp == 0 || numericTolerance.signum() > 0
+                && d1.subtract(d2).abs().compareTo(numericTolerance) <= 0;
+    }
+
+    private static BigDecimal toBigDecimal(Object v) {
+        if (v instanceof BigDecimal) {
+            return (BigDecimal) v;
+        } else if (isIntegral(v)) {
+            return BigDecimal.valueOf(((Number) v).longValue());
+        } else if (v instanceof Double || v instanceof Float) {
+            double d = ((Number) v).doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+        }
+        return null;
+    }
+}
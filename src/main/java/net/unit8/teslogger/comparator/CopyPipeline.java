@@ -0,0 +1,114 @@
+package net.unit8.teslogger.comparator;
+
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves rows from a {@link SourceReader} to a {@link RowHandler}.
+ *
+ * When pipelined, a reader thread fetches rows from the source into a bounded
+ * ring of row arrays while the calling thread hands them to the handler,
+ * so that source fetch latency overlaps with snapshot inserts.
+ * The reader blocks while all arrays are in use, which bounds the memory.
+ * LOBs are read into the arrays by the reader thread, as their locators are only
+ * valid on the current row of the result set.
+ *
+ * @author kawasima
+ */
+class CopyPipeline {
+    private static final Object[] END = new Object[0];
+
+    interface RowHandler {
+        /**
+         * Handles a row. The array is reused after this method returns.
+         */
+        void handle(Object[] values) throws SQLException;
+    }
+
+    private final SourceReader reader;
+    private final int bufferSize;
+
+    /**
+     * @param reader     the source reader
+     * @param bufferSize the number of rows buffered between the threads, or 0 to read and write on the calling thread
+     */
+    CopyPipeline(SourceReader reader, int bufferSize) {
+        this.reader = reader;
+        this.bufferSize = bufferSize;
+    }
+
+    void copy(RowHandler handler) throws SQLException {
+        if (bufferSize <= 0) {
+            Object[] values = new Object[reader.getColumnCount()];
+            while (reader.next(values)) {
+                handler.handle(values);
+            }
+        } else {
+            copyPipelined(handler);
+        }
+    }
+
+    private void copyPipelined(RowHandler handler) throws SQLException {
+        final BlockingQueue<Object[]> free = new ArrayBlockingQueue<>(bufferSize);
+        final BlockingQueue<Object[]> filled = new ArrayBlockingQueue<>(bufferSize + 1);
+        for (int i = 0; i < bufferSize; i++) {
+            free.add(new Object[reader.getColumnCount()]);
+        }
+        final AtomicReference<Throwable> readError = new AtomicReference<>();
+
+        Thread readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Object[] values = free.take();
+                        if (!reader.next(values)) break;
+                        reader.detach(values);
+                        filled.put(values);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (Throwable t) {
+                    readError.set(t);
+                }
+                filled.offer(END);
+            }
+        }, "snapshot-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        boolean completed = false;
+        try {
+            while (true) {
+                Object[] values = filled.take();
+                if (values == END) break;
+                handler.handle(values);
+                free.add(values);
+            }
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying.", ex);
+        } finally {
+            if (!completed) {
+                readerThread.interrupt();
+            }
+            try {
+                readerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        Throwable t = readError.get();
+        if (t instanceof SQLException) {
+            throw (SQLException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new SQLException(t);
+        }
+    }
+}
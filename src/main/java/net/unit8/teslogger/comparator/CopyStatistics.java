@@ -0,0 +1,85 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * Metrics of the copy of a table into a snapshot.
+ *
+ * @author kawasima
+ */
+public class CopyStatistics {
+    private final String tableName;
+    private final SnapshotMetrics metrics;
+    private long rows;
+    private long bytes;
+    private long batches;
+    private long commits;
+    private long elapsedNanos;
+
+    public CopyStatistics(String tableName) {
+        this(tableName, SnapshotMetrics.NONE);
+    }
+
+    /**
+     * @param metrics receives the batches and the commits as they happen
+     */
+    CopyStatistics(String tableName, SnapshotMetrics metrics) {
+        this.tableName = tableName;
+        this.metrics = metrics;
+    }
+
+    void addRow(long rowBytes) {
+        rows++;
+        bytes += rowBytes;
+    }
+
+    void addBatch(int batchRows, long batchBytes, long nanos) {
+        batches++;
+        metrics.batch(tableName, batchRows, batchBytes);
+        metrics.time(tableName, SnapshotMetrics.Phase.INSERT, nanos);
+    }
+
+    void addCommit(long nanos) {
+        commits++;
+        metrics.time(tableName, SnapshotMetrics.Phase.COMMIT, nanos);
+    }
+
+    void addElapsedNanos(long nanos) {
+        elapsedNanos += nanos;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /** The number of rows written. */
+    public long getRows() {
+        return rows;
+    }
+
+    /** The estimated size of the values written. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** The number of JDBC batches executed. */
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getCommits() {
+        return commits;
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "CopyStatistics{table=" + tableName + ", rows=" + rows + ", bytes=" + bytes
+                + ", batches=" + batches + ", commits=" + commits + ", elapsed=" + getElapsedMillis() + "ms}";
+    }
+}
@@ -0,0 +1,73 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes the differences as RFC 4180 CSV.
+ *
+ * The first field of each record is the change: {@code add}, {@code delete},
+ * or {@code before} and {@code after} for the two images of a modified row.
+ * Null values are written as empty fields.
+ *
+ * @author kawasima
+ */
+public class CsvDiffWriter extends DiffWriter {
+    public CsvDiffWriter(OutputStream out, List<Column> columns) {
+        super(out, columns);
+    }
+
+    @Override
+    protected void writeStart() throws IOException {
+        writeRecord("change", headers);
+    }
+
+    @Override
+    protected void writeAdd(Row row) throws IOException {
+        writeRecord("add", row);
+    }
+
+    @Override
+    protected void writeModify(Row current, Row previous) throws IOException {
+        writeRecord("before", previous);
+        writeRecord("after", current);
+    }
+
+    @Override
+    protected void writeDelete(Row row) throws IOException {
+        writeRecord("delete", row);
+    }
+
+    @Override
+    protected void writeEnd() {
+    }
+
+    private void writeRecord(String change, List<?> values) throws IOException {
+        writer.write(change);
+        for (Object value : values) {
+            writer.write(',');
+            if (value != null) {
+                writeField(value.toString());
+            }
+        }
+        writer.write("\r\n");
+    }
+
+    private void writeField(String s) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(s);
+            return;
+        }
+        writer.write('"');
+        writer.write(s.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -2,42 +2,108 @@ package net.unit8.teslogger.comparator;
 
 import org.h2.table.Column;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * @author kawasima
  */
-public class Diff {
+public class Diff implements DiffListener {
     private List<String> headers = new ArrayList<>();
     private List<Row> add    = new ArrayList<>();
-    private List<Row> modify = new ArrayList<>();
+    private List<Modification> modify = new ArrayList<>();
     private List<Row> delete = new ArrayList<>();
 
+    /** Added rows keyed by their primary key tuple. */
+    private Map<List<Object>, Row> addIndex = new HashMap<>();
+    /** Added rows without a primary key. */
+    private Set<Row> unkeyed = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+    /** Added rows promoted to modifications, removed from {@code add} lazily. */
+    private Set<Row> promoted = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+
     public Diff(List<Column> columns) {
         for (Column column : columns) {
             headers.add(column.getName());
         }
     }
+    @Override
     public void add(Row row) {
         add.add(row);
+        List<Object> key = row.getPrimaryKey();
+        if (key != null) {
+            addIndex.put(key, row);
+        } else {
+            unkeyed.add(row);
+        }
+    }
+
+    /**
+     * Finds the added row which has the same primary key as the given row.
+     *
+     * @param row a row
+     * @return the added row, or null if not found
+     */
+    public Row findAdded(Row row) {
+        List<Object> key = row.getPrimaryKey();
+        return key != null ? addIndex.get(key) : null;
     }
 
+    @Override
     public void modify(Row prev, Row next) {
-        add.remove(prev);
-        modify.add(next.diff(prev));
+        List<Object> key = prev.getPrimaryKey();
+        if (key == null) {
+            if (unkeyed.remove(prev)) {
+                promoted.add(prev);
+            }
+        } else if (addIndex.get(key) == prev) {
+            addIndex.remove(key);
+            promoted.add(prev);
+        }
+        modify.add(new Modification(next, prev));
     }
 
+    @Override
     public void delete(Row row) {
         delete.add(row);
     }
 
     public List<Row> getAdd() {
+        if (!promoted.isEmpty()) {
+            List<Row> remaining = new ArrayList<>(add.size() - promoted.size());
+            for (Row row : add) {
+                if (!promoted.contains(row)) {
+                    remaining.add(row);
+                }
+            }
+            add = remaining;
+            promoted.clear();
+        }
         return add;
     }
 
+    /**
+     * Returns the modified rows. Each changed value is a pair of the previous and the current value.
+     * The rows are built from the recorded changes when they are read.
+     */
     public List<Row> getModify() {
-        return modify;
+        return new AbstractList<Row>() {
+            @Override
+            public Row get(int index) {
+                return modify.get(index).toRow();
+            }
+
+            @Override
+            public int size() {
+                return modify.size();
+            }
+        };
     }
 
     public List<Row> getDelete() {
@@ -47,4 +113,33 @@ public class Diff {
     public List<String> getHeaders() {
         return headers;
     }
+
+    /**
+     * A row and the values of the other row in its changed columns.
+     */
+    private static class Modification {
+        private final Row row;
+        private final BitSet changed;
+        private final Object[] otherValues;
+
+        Modification(Row row, Row other) {
+            this.row = row;
+            this.changed = row.changedColumns(other);
+            this.otherValues = new Object[changed.cardinality()];
+            for (int i = changed.nextSetBit(0), j = 0; i >= 0; i = changed.nextSetBit(i + 1)) {
+                otherValues[j++] = other.getValue(i);
+            }
+        }
+
+        Row toRow() {
+            RowSchema schema = row.getSchema();
+            Row diffRow = new Row(schema);
+            for (int i = 0, j = 0; i < row.size(); i++) {
+                diffRow.add(changed.get(i) ?
+                        new Object[]{row.get(i), schema.render(i, otherValues[j++])}
+                        : row.getValue(i));
+            }
+            return diffRow;
+        }
+    }
 }
@@ -0,0 +1,19 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * The algorithm used to compare two versions of a table.
+ *
+ * @author kawasima
+ */
+public enum DiffEngine {
+    /** Two {@code MINUS} queries, with modifications matched by primary key in memory. */
+    MINUS,
+    /** A single pass over both versions ordered by primary key. */
+    MERGE_JOIN,
+    /**
+     * For tables without a primary key, a comparison of the rows as multisets by their hashes
+     * sorted on disk, with modifications matched by the logical key of the {@link SnapshotSpec}.
+     * Tables with a primary key are merge-joined.
+     */
+    EXTERNAL_SORT
+}
@@ -0,0 +1,13 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * The format of differences written to a stream.
+ *
+ * @author kawasima
+ */
+public enum DiffFormat {
+    /** A JSON document, written by {@link JsonDiffWriter}. */
+    JSON,
+    /** CSV records, written by {@link CsvDiffWriter}. */
+    CSV
+}
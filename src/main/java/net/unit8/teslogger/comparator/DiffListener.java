@@ -0,0 +1,30 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * Receives the differences between two versions of a table as they are found.
+ *
+ * @author kawasima
+ */
+public interface DiffListener {
+    /**
+     * Called for a row which exists only in the current version.
+     *
+     * @param row the added row
+     */
+    void add(Row row);
+
+    /**
+     * Called for a row whose primary key exists in both versions with different values.
+     *
+     * @param current  the row in the current version
+     * @param previous the row in the previous version
+     */
+    void modify(Row current, Row previous);
+
+    /**
+     * Called for a row which exists only in the previous version.
+     *
+     * @param row the deleted row
+     */
+    void delete(Row row);
+}
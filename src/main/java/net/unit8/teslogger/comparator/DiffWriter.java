@@ -0,0 +1,95 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes each difference to a stream as soon as it is reported,
+ * without holding the differences in memory.
+ *
+ * The output is complete when the writer is finished or closed.
+ *
+ * @author kawasima
+ */
+public abstract class DiffWriter implements DiffListener, Closeable {
+    protected final Writer writer;
+    protected final List<String> headers = new ArrayList<>();
+    private boolean started;
+    private boolean finished;
+
+    protected DiffWriter(OutputStream out, List<Column> columns) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        for (Column column : columns) {
+            headers.add(column.getName());
+        }
+    }
+
+    @Override
+    public void add(Row row) {
+        try {
+            start();
+            writeAdd(row);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void modify(Row current, Row previous) {
+        try {
+            start();
+            writeModify(current, previous);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void delete(Row row) {
+        try {
+            start();
+            writeDelete(row);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Completes the output and flushes it, leaving the stream open.
+     */
+    public void finish() throws IOException {
+        if (!finished) {
+            finished = true;
+            start();
+            writeEnd();
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        writer.close();
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            writeStart();
+        }
+    }
+
+    protected abstract void writeStart() throws IOException;
+
+    protected abstract void writeAdd(Row row) throws IOException;
+
+    protected abstract void writeModify(Row current, Row previous) throws IOException;
+
+    protected abstract void writeDelete(Row row) throws IOException;
+
+    protected abstract void writeEnd() throws IOException;
+}
@@ -0,0 +1,99 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Compares two versions of a table without a primary key as multisets of rows.
+ *
+ * The row hashes of each version are sorted in runs of a bounded size, which are spilled
+ * to temporary files and merged. Merging both versions gives how many copies of each row
+ * were added and deleted, so that duplicate rows count. The differing rows are then read
+ * again from the versions, as {@link HashDiffer} describes.
+ *
+ * When a logical key is given, an added and a deleted row with the same values of its columns
+ * are reported as a modification.
+ *
+ * @author kawasima
+ */
+class ExternalSortDiffer {
+    private final List<Column> columns;
+    private final RowSchema schema;
+    private final int[] keyIndex;
+    private final int bufferSize;
+
+    /**
+     * @param columns    the columns of the table
+     * @param logicalKey the names of the columns pairing added and deleted rows, or an empty list
+     * @param bufferSize the number of hashes sorted, and about the number of differing rows held, in memory
+     * @param policy     the comparison of the values of paired rows
+     */
+    ExternalSortDiffer(List<Column> columns, List<String> logicalKey, int bufferSize, ComparisonPolicy policy) {
+        this.columns = columns;
+        this.schema = new RowSchema(columns, policy);
+        this.bufferSize = bufferSize;
+        keyIndex = new int[logicalKey.size()];
+        for (int i = 0; i < keyIndex.length; i++) {
+            keyIndex[i] = indexOf(logicalKey.get(i));
+        }
+    }
+
+    private int indexOf(String columnName) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).getName().equalsIgnoreCase(columnName)) return i;
+        }
+        throw new IllegalArgumentException("Unknown logical key column: " + columnName);
+    }
+
+    void diff(Connection conn, String currentTable, String previousTable, DiffListener listener) throws SQLException {
+        try {
+            new HashDiffer(keyIndex, bufferSize).diff(
+                    new TableVersion(conn, previousTable), new TableVersion(conn, currentTable), listener);
+        } catch (IOException ex) {
+            throw new SQLException(ex);
+        }
+    }
+
+    /**
+     * A version table, read by a query for each pass of the diff.
+     */
+    private class TableVersion implements HashDiffer.Version {
+        private final Connection conn;
+        private final String table;
+
+        TableVersion(Connection conn, String table) {
+            this.conn = conn;
+            this.table = table;
+        }
+
+        @Override
+        public void hashes(SortedHashes sorted) throws IOException, SQLException {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT " + RowHasher.HASH_COLUMN + " FROM " + table)) {
+                while (rs.next()) {
+                    sorted.add(rs.getLong(1));
+                }
+            }
+        }
+
+        @Override
+        public void rows(HashDiffer.RowFilter filter) throws SQLException {
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT " + MergeJoinDiffer.columnList(columns)
+                         + "," + RowHasher.HASH_COLUMN + " FROM " + table)) {
+                while (rs.next()) {
+                    long hash = rs.getLong(columns.size() + 1);
+                    if (filter.accept(hash)) {
+                        filter.row(hash, schema.read(rs));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The numbers of copies of row hashes, spilled to a temporary file.
+ *
+ * The hashes are added in ascending order, then the file is mapped and looked up by binary search.
+ * The counts are taken in place in the mapping, so only the hashes being looked up are in memory.
+ * <pre>
+ *   { long hash, long count } * entries
+ * </pre>
+ *
+ * @author kawasima
+ */
+class HashCounts implements Closeable {
+    private static final int ENTRY_SIZE = 16;
+
+    private final File file;
+    private DataOutputStream out;
+    private MappedFile mapped;
+    private long entries;
+    private long rows;
+
+    HashCounts() throws IOException {
+        file = File.createTempFile("snapshot-hashes", ".counts");
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    /**
+     * Adds a hash greater than those added before.
+     */
+    void add(long hash, long count) throws IOException {
+        out.writeLong(hash);
+        out.writeLong(count);
+        entries++;
+        rows += count;
+    }
+
+    /**
+     * Ends the adding of hashes and maps the file for the lookups.
+     */
+    void finish() throws IOException {
+        out.close();
+        out = null;
+        if (entries > 0) {
+            mapped = new MappedFile(file, true);
+        }
+    }
+
+    /**
+     * Returns the number of rows counted by all the hashes when they were added.
+     */
+    long rows() {
+        return rows;
+    }
+
+    /**
+     * Returns whether copies of the hash remain to be taken.
+     */
+    boolean contains(long hash) {
+        long entry = find(hash);
+        return entry >= 0 && mapped.getLong(entry * ENTRY_SIZE + 8) > 0;
+    }
+
+    /**
+     * Takes a copy of the hash.
+     *
+     * @return false if no copy remains
+     */
+    boolean take(long hash) {
+        long entry = find(hash);
+        if (entry < 0) return false;
+        long count = mapped.getLong(entry * ENTRY_SIZE + 8);
+        if (count <= 0) return false;
+        mapped.putLong(entry * ENTRY_SIZE + 8, count - 1);
+        return true;
+    }
+
+    private long find(long hash) {
+        long low = 0;
+        long high = entries - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            long midHash = mapped.getLong(mid * ENTRY_SIZE);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (out != null) out.close();
+        } finally {
+            if (mapped != null) mapped.close();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two versions of a table as multisets of rows, by their content hashes.
+ *
+ * The row hashes of each version are sorted in runs of a bounded size and merged, as {@link SortedHashes} does,
+ * which counts how many copies of each hash were added and deleted. The counts are spilled to {@link HashCounts}
+ * files, and the versions are then scanned again for the rows of the counted hashes.
+ *
+ * Without a key, each differing row is reported as soon as it is read. With a key, the added and deleted rows
+ * with the same key values are paired as a modification. The differing rows are split into partitions by their
+ * keys, of about as many rows as the buffer size, and the partitions are read and paired one at a time,
+ * so that a version mostly rewritten costs more scans rather than more memory.
+ *
+ * @author kawasima
+ */
+class HashDiffer {
+    private final int[] keyIndex;
+    private final int bufferSize;
+
+    /**
+     * @param keyIndex   the indexes of the key columns, or an empty array to pair no rows
+     * @param bufferSize the number of hashes sorted, and about the number of rows paired, in memory
+     */
+    HashDiffer(int[] keyIndex, int bufferSize) {
+        this.keyIndex = keyIndex;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * A version of a table, read as many times as the diff needs.
+     */
+    interface Version {
+        /**
+         * Adds the hash of each row to the sorter.
+         */
+        void hashes(SortedHashes sorted) throws IOException, SQLException;
+
+        /**
+         * Scans the rows, building only those whose hashes the filter accepts.
+         */
+        void rows(RowFilter filter) throws IOException, SQLException;
+    }
+
+    interface RowFilter {
+        boolean accept(long hash);
+
+        void row(long hash, Row row);
+    }
+
+    void diff(Version from, Version to, final DiffListener listener) throws IOException, SQLException {
+        try (final HashCounts added = new HashCounts();
+             final HashCounts deleted = new HashCounts()) {
+            try (SortedHashes current = sort(to);
+                 SortedHashes previous = sort(from)) {
+                SortedHashes.merge(current, previous, added, deleted);
+            }
+            added.finish();
+            deleted.finish();
+
+            if (keyIndex.length == 0) {
+                if (added.rows() > 0) {
+                    to.rows(new RowFilter() {
+                        @Override
+                        public boolean accept(long hash) {
+                            return added.take(hash);
+                        }
+
+                        @Override
+                        public void row(long hash, Row row) {
+                            listener.add(row);
+                        }
+                    });
+                }
+                if (deleted.rows() > 0) {
+                    from.rows(new RowFilter() {
+                        @Override
+                        public boolean accept(long hash) {
+                            return deleted.take(hash);
+                        }
+
+                        @Override
+                        public void row(long hash, Row row) {
+                            listener.delete(row);
+                        }
+                    });
+                }
+                return;
+            }
+
+            long rows = Math.max(added.rows(), deleted.rows());
+            int partitions = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (rows + bufferSize - 1) / bufferSize));
+            for (int partition = 0; partition < partitions; partition++) {
+                report(collect(to, added, partitions, partition), collect(from, deleted, partitions, partition), listener);
+            }
+        }
+    }
+
+    private SortedHashes sort(Version version) throws IOException, SQLException {
+        SortedHashes sorted = new SortedHashes(bufferSize);
+        try {
+            version.hashes(sorted);
+            sorted.finish();
+        } catch (IOException | SQLException | RuntimeException ex) {
+            sorted.close();
+            throw ex;
+        }
+        return sorted;
+    }
+
+    /**
+     * Reads the counted rows of a partition. The counts of the rows read are taken.
+     */
+    private List<Row> collect(Version version, final HashCounts counts,
+                              final int partitions, final int partition) throws IOException, SQLException {
+        final List<Row> rows = new ArrayList<>();
+        if (counts.rows() == 0) return rows;
+        version.rows(new RowFilter() {
+            @Override
+            public boolean accept(long hash) {
+                return counts.contains(hash);
+            }
+
+            @Override
+            public void row(long hash, Row row) {
+                // Copies of a row have the same key, so they all fall in the same partition
+                if (partition(row, partitions) == partition && counts.take(hash)) {
+                    rows.add(row);
+                }
+            }
+        });
+        return rows;
+    }
+
+    private int partition(Row row, int partitions) {
+        List<Object> key = key(row, keyIndex);
+        return key == null ? 0 : (key.hashCode() & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Reports the rows only in one of the versions. An added and a deleted row with the same
+     * key values are paired as a modification, which isn't reported if their values are the same.
+     */
+    private void report(List<Row> addedRows, List<Row> deletedRows, DiffListener listener) {
+        Map<List<Object>, LinkedList<Row>> addedByKey = new LinkedHashMap<>();
+        for (Row row : addedRows) {
+            List<Object> key = key(row, keyIndex);
+            if (key == null) {
+                listener.add(row);
+                continue;
+            }
+            LinkedList<Row> rows = addedByKey.get(key);
+            if (rows == null) {
+                rows = new LinkedList<>();
+                addedByKey.put(key, rows);
+            }
+            rows.add(row);
+        }
+        for (Row row : deletedRows) {
+            List<Object> key = key(row, keyIndex);
+            LinkedList<Row> rows = key == null ? null : addedByKey.get(key);
+            if (rows != null && !rows.isEmpty()) {
+                Row addedRow = rows.removeFirst();
+                if (!addedRow.sameValues(row)) {
+                    listener.modify(addedRow, row);
+                }
+            } else {
+                listener.delete(row);
+            }
+        }
+        for (List<Row> rows : addedByKey.values()) {
+            for (Row row : rows) {
+                listener.add(row);
+            }
+        }
+    }
+
+    /**
+     * Returns the key values of the row, or null if a key value is null.
+     */
+    private static List<Object> key(Row row, int[] keyIndex) {
+        Object[] key = new Object[keyIndex.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = row.get(keyIndex[i]);
+            if (key[i] == null) return null;
+        }
+        return Arrays.asList(key);
+    }
+}
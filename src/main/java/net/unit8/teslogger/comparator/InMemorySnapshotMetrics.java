@@ -0,0 +1,139 @@
+package net.unit8.teslogger.comparator;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates the metrics per table and phase in memory.
+ *
+ * Table names are compared case-insensitively. The work which isn't for a single table
+ * is accumulated under the null table name.
+ *
+ * @author kawasima
+ */
+public class InMemorySnapshotMetrics implements SnapshotMetrics {
+    private static final String NO_TABLE = "";
+
+    private final ConcurrentSkipListMap<String, TableMetrics> tables =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    @Override
+    public void time(String tableName, Phase phase, long nanos) {
+        TableMetrics metrics = table(tableName);
+        metrics.nanos.addAndGet(phase.ordinal(), nanos);
+        metrics.counts.incrementAndGet(phase.ordinal());
+    }
+
+    @Override
+    public void rows(String tableName, Phase phase, long rows, long bytes) {
+        TableMetrics metrics = table(tableName);
+        metrics.rows.addAndGet(phase.ordinal(), rows);
+        metrics.bytes.addAndGet(phase.ordinal(), bytes);
+    }
+
+    @Override
+    public void batch(String tableName, int rows, long bytes) {
+        TableMetrics metrics = table(tableName);
+        metrics.batches.incrementAndGet();
+        metrics.batchRows.addAndGet(rows);
+        metrics.batchBytes.addAndGet(bytes);
+        long max;
+        while ((max = metrics.maxBatchRows.get()) < rows && !metrics.maxBatchRows.compareAndSet(max, rows)) {
+            // retry
+        }
+    }
+
+    private TableMetrics table(String tableName) {
+        String key = tableName == null ? NO_TABLE : tableName;
+        TableMetrics metrics = tables.get(key);
+        if (metrics == null) {
+            metrics = new TableMetrics();
+            TableMetrics prev = tables.putIfAbsent(key, metrics);
+            if (prev != null) metrics = prev;
+        }
+        return metrics;
+    }
+
+    private TableMetrics find(String tableName) {
+        return tables.get(tableName == null ? NO_TABLE : tableName);
+    }
+
+    /**
+     * Returns the names of the tables which have metrics. The null name isn't included.
+     */
+    public Set<String> getTableNames() {
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        names.addAll(tables.keySet());
+        names.remove(NO_TABLE);
+        return Collections.unmodifiableSet(names);
+    }
+
+    /** The total time spent in the phase. */
+    public long getNanos(String tableName, Phase phase) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.nanos.get(phase.ordinal());
+    }
+
+    public long getElapsedMillis(String tableName, Phase phase) {
+        return getNanos(tableName, phase) / 1000000L;
+    }
+
+    /** The number of times the phase was timed. */
+    public long getCount(String tableName, Phase phase) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.counts.get(phase.ordinal());
+    }
+
+    public long getRows(String tableName, Phase phase) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.rows.get(phase.ordinal());
+    }
+
+    public long getBytes(String tableName, Phase phase) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.bytes.get(phase.ordinal());
+    }
+
+    /** The number of JDBC batches executed. */
+    public long getBatches(String tableName) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.batches.get();
+    }
+
+    /** The number of rows in all the batches. */
+    public long getBatchRows(String tableName) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.batchRows.get();
+    }
+
+    /** The estimated size of the rows in all the batches. */
+    public long getBatchBytes(String tableName) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.batchBytes.get();
+    }
+
+    /** The number of rows in the largest batch. */
+    public long getMaxBatchRows(String tableName) {
+        TableMetrics metrics = find(tableName);
+        return metrics == null ? 0 : metrics.maxBatchRows.get();
+    }
+
+    public void reset() {
+        tables.clear();
+    }
+
+    private static class TableMetrics {
+        final AtomicLongArray nanos  = new AtomicLongArray(Phase.values().length);
+        final AtomicLongArray counts = new AtomicLongArray(Phase.values().length);
+        final AtomicLongArray rows   = new AtomicLongArray(Phase.values().length);
+        final AtomicLongArray bytes  = new AtomicLongArray(Phase.values().length);
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong batchRows = new AtomicLong();
+        final AtomicLong batchBytes = new AtomicLong();
+        final AtomicLong maxBatchRows = new AtomicLong();
+    }
+}
@@ -0,0 +1,534 @@
+package net.unit8.teslogger.comparator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.h2.command.Parser;
+import org.h2.table.Column;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Captures a table as a delta against its previous version.
+ *
+ * Besides the version tables, an incremental table keeps a state table
+ * holding the latest image of every row with its content hash.
+ * A new version is captured by hashing each source row and comparing it
+ * with the hash stored for the same primary key; only the changed rows
+ * are written to the delta table, tagged with an operation:
+ * <ul>
+ *     <li>I - the inserted row</li>
+ *     <li>B, U - the row before and after an update</li>
+ *     <li>D - the deleted row</li>
+ * </ul>
+ *
+ * @author kawasima
+ */
+class IncrementalCapture {
+    static final String STATE_SUFFIX = "_STATE";
+    static final String OP_COLUMN   = "SNAPSHOT_OP";
+    private static final CompareMode COMPARE_MODE = CompareMode.getInstance(null, 0);
+
+    private final Connection snapshotConn;
+    private final String tableName;
+    private final List<Column> columns;
+    private final String sourceQuery;
+    private final RowHasher hasher;
+    private final BatchWriter.Policy batchPolicy;
+    private final CopyStatistics statistics;
+    private final SnapshotMetrics metrics;
+
+    IncrementalCapture(Connection snapshotConn, String tableName, List<Column> columns, String sourceQuery,
+                       BatchWriter.Policy batchPolicy, SnapshotMetrics metrics) {
+        this.snapshotConn = snapshotConn;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.sourceQuery = sourceQuery;
+        this.hasher = new RowHasher(columns);
+        this.batchPolicy = batchPolicy;
+        this.statistics = new CopyStatistics(tableName, metrics);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the metrics of the rows written to the version table.
+     */
+    CopyStatistics getStatistics() {
+        return statistics;
+    }
+
+    static String stateTable(String tableName) {
+        return tableName + STATE_SUFFIX;
+    }
+
+    /**
+     * Whether the table can be captured incrementally.
+     * The source and the state table are merge-joined, so the primary key must order the same in both.
+     */
+    boolean supports() {
+        return hasher.hasPrimaryKey() && MergeJoinDiffer.supports(columns);
+    }
+
+    /**
+     * Copies the whole source table into the version table and rebuilds the state table from it,
+     * in a single transaction.
+     *
+     * @return the checksum of the copied rows
+     */
+    TableChecksum captureBase(Connection conn, String versionTable) throws SQLException {
+        String stateTable = stateTable(tableName);
+        try (Statement stmt = snapshotConn.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + stateTable);
+            stmt.executeUpdate(createTableSql(stateTable, RowHasher.HASH_COLUMN + " BIGINT NOT NULL", null));
+        }
+
+        long started = System.nanoTime();
+        boolean autoCommit = snapshotConn.getAutoCommit();
+        snapshotConn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sourceQuery);
+             PreparedStatement versionStmt = snapshotConn.prepareStatement(insertSql(versionTable, 1));
+             PreparedStatement stateStmt = snapshotConn.prepareStatement(insertSql(stateTable, 1))) {
+            SourceReader reader = new SourceReader(rs, columns);
+            TableChecksum checksum = new TableChecksum();
+            BatchWriter versionWriter = new BatchWriter(snapshotConn, versionStmt, batchPolicy.withoutCommits(), statistics);
+            BatchWriter stateWriter = new BatchWriter(snapshotConn, stateStmt, batchPolicy.withoutCommits(),
+                    new CopyStatistics(stateTable, metrics));
+            Object[] values = new Object[columns.size()];
+            while (reader.next(values)) {
+                long hash = hasher.hash(values);
+                checksum.add(hash);
+                reader.bind(versionStmt, values);
+                versionStmt.setLong(values.length + 1, hash);
+                versionWriter.add(values);
+                reader.bind(stateStmt, values);
+                stateStmt.setLong(values.length + 1, hash);
+                stateWriter.add(values);
+            }
+            versionWriter.flush();
+            stateWriter.flush();
+            commit();
+            return checksum;
+        } catch (SQLException ex) {
+            snapshotConn.rollback();
+            throw ex;
+        } finally {
+            snapshotConn.setAutoCommit(autoCommit);
+            statistics.addElapsedNanos(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Writes the rows changed since the version reflected by the state table into the delta table,
+     * and brings the state table up to date, in a single transaction.
+     *
+     * The source rows and the keys and hashes of the state table are both read ordered by primary key
+     * and merge-joined, so the memory used doesn't grow with the table.
+     * Only the changed rows are read from the state table in full.
+     *
+     * @return the checksum of the whole table after the changes
+     */
+    TableChecksum captureDelta(Connection conn, String deltaTable) throws SQLException {
+        String stateTable = stateTable(tableName);
+        try (Statement stmt = snapshotConn.createStatement()) {
+            stmt.executeUpdate(createTableSql(deltaTable, OP_COLUMN + " CHAR(1) NOT NULL", OP_COLUMN));
+        }
+
+        long started = System.nanoTime();
+        boolean autoCommit = snapshotConn.getAutoCommit();
+        snapshotConn.setAutoCommit(false);
+        String orderBy = " ORDER BY " + MergeJoinDiffer.primaryKeyList(columns);
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sourceQuery + orderBy);
+             Statement stateQuery = snapshotConn.createStatement();
+             ResultSet stateRs = stateQuery.executeQuery("SELECT " + MergeJoinDiffer.primaryKeyList(columns)
+                     + "," + RowHasher.HASH_COLUMN + " FROM " + stateTable + orderBy);
+             StateWriter writer = new StateWriter(deltaTable)) {
+            StateCursor state = new StateCursor(stateRs);
+            SourceReader reader = new SourceReader(rs, columns);
+            TableChecksum checksum = new TableChecksum();
+            Object[] values = new Object[columns.size()];
+            List<Value> key = reader.next(values) ? hasher.key(values) : null;
+            while (key != null || state.key != null) {
+                int cmp = key == null ? 1 : state.key == null ? -1 : compareKey(key, state.key);
+                if (cmp > 0) {
+                    writer.delta(writer.readBefore(state.key), "D");
+                    writer.delete(state.key);
+                    state.next();
+                    continue;
+                }
+
+                long hash = hasher.hash(values);
+                checksum.add(hash);
+                if (cmp < 0) {
+                    writer.delta(values, "I");
+                    writer.merge(values, hash);
+                } else {
+                    if (state.hash != hash) {
+                        writer.delta(writer.readBefore(key), "B");
+                        writer.delta(values, "U");
+                        writer.merge(values, hash);
+                    }
+                    state.next();
+                }
+
+                List<Value> nextKey = reader.next(values) ? hasher.key(values) : null;
+                if (nextKey != null && compareKey(nextKey, key) <= 0) {
+                    throw new SQLException("The rows of " + tableName
+                            + " aren't ordered by the primary key in the same way by the source and the snapshot database.");
+                }
+                key = nextKey;
+            }
+            writer.flush();
+            commit();
+            return checksum;
+        } catch (SQLException ex) {
+            rollback(deltaTable);
+            throw ex;
+        } finally {
+            snapshotConn.setAutoCommit(autoCommit);
+            statistics.addElapsedNanos(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Applies the rows journaled by the trigger since the previous version to the state table,
+     * and writes the changes into the delta table, in a single transaction.
+     * Neither the source table nor the whole state table is read, only the journaled keys.
+     * The journal is purged once the transaction is committed.
+     *
+     * @param checksum the checksum of the previous version
+     * @return the checksum of the whole table after the changes
+     */
+    TableChecksum captureJournal(Connection conn, TriggerJournal journal, String deltaTable, TableChecksum checksum) throws SQLException {
+        try (Statement stmt = snapshotConn.createStatement()) {
+            stmt.executeUpdate(createTableSql(deltaTable, OP_COLUMN + " CHAR(1) NOT NULL", OP_COLUMN));
+        }
+
+        long started = System.nanoTime();
+        Map<List<Value>, Object[]> changes = new LinkedHashMap<>();
+        List<Long> sequences = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(journal.readSql())) {
+            SourceReader reader = new SourceReader(rs, columns);
+            Object[] values = new Object[columns.size()];
+            while (reader.next(values)) {
+                sequences.add(rs.getLong(TriggerJournal.SEQ_COLUMN));
+                changes.put(hasher.key(values), "D".equals(rs.getString(OP_COLUMN)) ? null : values.clone());
+            }
+        }
+
+        TableChecksum after = new TableChecksum(checksum.getRowCount(), checksum.getChecksum());
+        boolean autoCommit = snapshotConn.getAutoCommit();
+        snapshotConn.setAutoCommit(false);
+        try (StateWriter writer = new StateWriter(deltaTable)) {
+            for (Map.Entry<List<Value>, Object[]> change : changes.entrySet()) {
+                List<Value> key = change.getKey();
+                Object[] before = writer.findBefore(key);
+                long previousHash = before == null ? 0 : writer.beforeHash;
+
+                Object[] values = change.getValue();
+                if (values == null) {
+                    if (before == null) continue;
+                    writer.delta(before, "D");
+                    writer.delete(key);
+                    after.remove(previousHash);
+                    continue;
+                }
+                long hash = hasher.hash(values);
+                if (before == null) {
+                    writer.delta(values, "I");
+                } else if (previousHash == hash) {
+                    continue;
+                } else {
+                    writer.delta(before, "B");
+                    writer.delta(values, "U");
+                    after.remove(previousHash);
+                }
+                after.add(hash);
+                writer.merge(values, hash);
+            }
+            writer.flush();
+            commit();
+        } catch (SQLException ex) {
+            rollback(deltaTable);
+            throw ex;
+        } finally {
+            snapshotConn.setAutoCommit(autoCommit);
+            statistics.addElapsedNanos(System.nanoTime() - started);
+        }
+        journal.purge(conn, sequences);
+        return after;
+    }
+
+    private void commit() throws SQLException {
+        long started = System.nanoTime();
+        snapshotConn.commit();
+        statistics.addCommit(System.nanoTime() - started);
+    }
+
+    /**
+     * Rolls back the state table, and drops the delta table which was created outside of the transaction.
+     */
+    private void rollback(String deltaTable) throws SQLException {
+        snapshotConn.rollback();
+        try (Statement stmt = snapshotConn.createStatement()) {
+            stmt.executeUpdate("DROP TABLE IF EXISTS " + deltaTable);
+        }
+    }
+
+    private static int compareKey(List<Value> key1, List<Value> key2) {
+        for (int i = 0; i < key1.size(); i++) {
+            int cmp = key1.get(i).compareTypeSave(key2.get(i), COMPARE_MODE);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the keys and the hashes of the state table in key order.
+     */
+    private class StateCursor {
+        private final ResultSet rs;
+        List<Value> key;
+        long hash;
+
+        StateCursor(ResultSet rs) throws SQLException {
+            this.rs = rs;
+            next();
+        }
+
+        void next() throws SQLException {
+            if (!rs.next()) {
+                key = null;
+                return;
+            }
+            int[] pkIndex = hasher.getPrimaryKeyIndex();
+            Value[] values = new Value[pkIndex.length];
+            for (int i = 0; i < pkIndex.length; i++) {
+                values[i] = RowHasher.keyValue(rs.getObject(i + 1), columns.get(pkIndex[i]));
+            }
+            key = Arrays.asList(values);
+            hash = rs.getLong(pkIndex.length + 1);
+        }
+    }
+
+    /**
+     * Writes the delta rows and the changes of the state table through JDBC batches, without committing.
+     */
+    private class StateWriter implements AutoCloseable {
+        private final PreparedStatement deltaStmt;
+        private final PreparedStatement beforeStmt;
+        private final PreparedStatement mergeStmt;
+        private final PreparedStatement deleteStmt;
+        private final BatchWriter deltaWriter;
+        private final BatchWriter mergeWriter;
+        private final BatchWriter deleteWriter;
+        /** The hash of the row found by {@link #findBefore(List)}. */
+        long beforeHash;
+
+        StateWriter(String deltaTable) throws SQLException {
+            String stateTable = stateTable(tableName);
+            String keyCondition = keyCondition();
+            BatchWriter.Policy policy = batchPolicy.withoutCommits();
+            CopyStatistics stateStatistics = new CopyStatistics(stateTable, metrics);
+            deltaStmt = snapshotConn.prepareStatement(insertSql(deltaTable, 1));
+            beforeStmt = snapshotConn.prepareStatement(
+                    "SELECT " + MergeJoinDiffer.columnList(columns) + "," + RowHasher.HASH_COLUMN
+                            + " FROM " + stateTable + " WHERE " + keyCondition);
+            mergeStmt = snapshotConn.prepareStatement(
+                    "MERGE INTO " + stateTable + " KEY(" + MergeJoinDiffer.primaryKeyList(columns) + ")"
+                            + " VALUES(" + StringUtils.repeat("?", ",", columns.size() + 1) + ")");
+            deleteStmt = snapshotConn.prepareStatement("DELETE FROM " + stateTable + " WHERE " + keyCondition);
+            deltaWriter = new BatchWriter(snapshotConn, deltaStmt, policy, statistics);
+            mergeWriter = new BatchWriter(snapshotConn, mergeStmt, policy, stateStatistics);
+            deleteWriter = new BatchWriter(snapshotConn, deleteStmt, policy, stateStatistics);
+        }
+
+        void delta(Object[] values, String op) throws SQLException {
+            bind(deltaStmt, values);
+            deltaStmt.setString(values.length + 1, op);
+            deltaWriter.add(values);
+        }
+
+        void merge(Object[] values, long hash) throws SQLException {
+            bind(mergeStmt, values);
+            mergeStmt.setLong(values.length + 1, hash);
+            mergeWriter.add(values);
+        }
+
+        void delete(List<Value> key) throws SQLException {
+            bindKey(deleteStmt, key);
+            deleteWriter.add(key.toArray());
+        }
+
+        /**
+         * Reads the row of the state table with the key.
+         * Each key is read before its own changes are batched, so the pending batches don't matter.
+         *
+         * @return the values, or null if there is no such row
+         */
+        Object[] findBefore(List<Value> key) throws SQLException {
+            bindKey(beforeStmt, key);
+            try (ResultSet rs = beforeStmt.executeQuery()) {
+                if (!rs.next()) return null;
+                Object[] values = new Object[columns.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                beforeHash = rs.getLong(values.length + 1);
+                return values;
+            }
+        }
+
+        Object[] readBefore(List<Value> key) throws SQLException {
+            Object[] values = findBefore(key);
+            if (values == null) {
+                throw new SQLException("Row not found in " + stateTable(tableName) + ": " + key);
+            }
+            return values;
+        }
+
+        void flush() throws SQLException {
+            deltaWriter.flush();
+            mergeWriter.flush();
+            deleteWriter.flush();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try (PreparedStatement ignore1 = deltaStmt;
+                 PreparedStatement ignore2 = beforeStmt;
+                 PreparedStatement ignore3 = mergeStmt;
+                 PreparedStatement ignore4 = deleteStmt) {
+                // Closes all the statements
+            }
+        }
+    }
+
+    /**
+     * Reads a delta table and reports its rows as differences from the previous version.
+     */
+    static void diff(Connection snapshotConn, String deltaTable, List<Column> columns, DiffListener listener) throws SQLException {
+        diff(snapshotConn, Collections.singletonList(deltaTable), columns, new ComparisonPolicy(), listener);
+    }
+
+    /**
+     * Composes consecutive delta tables, oldest first, and reports the differences
+     * between the version before the first delta and the version of the last one.
+     *
+     * For each primary key, the image before the first change is compared with
+     * the image after the last change, so only the changed rows are read.
+     */
+    static void diff(Connection snapshotConn, List<String> deltaTables, List<Column> columns,
+                     ComparisonPolicy policy, DiffListener listener) throws SQLException {
+        String columnList = MergeJoinDiffer.columnList(columns);
+        StringBuilder sql = new StringBuilder();
+        for (int i = 0; i < deltaTables.size(); i++) {
+            if (i > 0) sql.append(" UNION ALL ");
+            sql.append("SELECT ").append(columnList).append(",").append(OP_COLUMN).append(",").append(i)
+                    .append(" FROM ").append(deltaTables.get(i));
+        }
+        sql.append(" ORDER BY ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isPrimaryKey()) {
+                sql.append(i + 1).append(",");
+            }
+        }
+        sql.append(columns.size() + 2).append(",").append(columns.size() + 1);
+
+        RowSchema schema = new RowSchema(columns, policy);
+        try (Statement stmt = snapshotConn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql.toString())) {
+            List<Object> key = null;
+            Row before = null;
+            Row after = null;
+            while (rs.next()) {
+                Row row = schema.read(rs);
+                String op = rs.getString(columns.size() + 1);
+                if (!row.getPrimaryKey().equals(key)) {
+                    report(before, after, listener);
+                    key = row.getPrimaryKey();
+                    switch (op) {
+                        case "I":
+                            before = null;
+                            break;
+                        case "B":
+                        case "D":
+                            before = row;
+                            break;
+                        default:
+                            throw new SQLException("Unknown operation in " + deltaTables + ": " + op);
+                    }
+                }
+                switch (op) {
+                    case "I":
+                    case "U":
+                        after = row;
+                        break;
+                    case "B":
+                    case "D":
+                        after = null;
+                        break;
+                    default:
+                        throw new SQLException("Unknown operation in " + deltaTables + ": " + op);
+                }
+            }
+            report(before, after, listener);
+        }
+    }
+
+    private static void report(Row before, Row after, DiffListener listener) {
+        if (before == null) {
+            if (after != null) listener.add(after);
+        } else if (after == null) {
+            listener.delete(before);
+        } else if (!before.sameValues(after)) {
+            listener.modify(after, before);
+        }
+    }
+
+    private void bind(PreparedStatement stmt, Object[] values) throws SQLException {
+        for (int i = 0; i < values.length; i++) {
+            stmt.setObject(i + 1, values[i]);
+        }
+    }
+
+    private void bindKey(PreparedStatement stmt, List<Value> key) throws SQLException {
+        for (int i = 0; i < key.size(); i++) {
+            stmt.setObject(i + 1, key.get(i).getObject());
+        }
+    }
+
+    private String keyCondition() {
+        StringBuilder sql = new StringBuilder();
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) {
+                if (sql.length() > 0) sql.append(" AND ");
+                sql.append(Parser.quoteIdentifier(column.getName())).append("=?");
+            }
+        }
+        return sql.toString();
+    }
+
+    private String insertSql(String table, int extraColumns) {
+        return "INSERT INTO " + table
+                + " VALUES(" + StringUtils.repeat("?", ",", columns.size() + extraColumns) + ")";
+    }
+
+    private String createTableSql(String table, String extraColumn, String extraKey) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE ").append(table).append(" (");
+        for (Column column : columns) {
+            sql.append("\n").append(column.getCreateSQL()).append(",");
+        }
+        sql.append("\n").append(extraColumn).append(",")
+                .append("\nPRIMARY KEY(").append(MergeJoinDiffer.primaryKeyList(columns));
+        if (extraKey != null) {
+            sql.append(",").append(extraKey);
+        }
+        sql.append("))");
+        return sql.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package net.unit8.teslogger.comparator;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes the metrics as attributes of an MBean.
+ *
+ * The MBean is named {@code net.unit8.teslogger.comparator:type=SnapshotMetrics,name=<name>}
+ * and has read-only attributes named
+ * <pre>
+ *   TABLE.PHASE.elapsedMillis, TABLE.PHASE.count, TABLE.PHASE.rows, TABLE.PHASE.bytes
+ *   TABLE.batches, TABLE.batchRows, TABLE.batchBytes, TABLE.maxBatchRows
+ * </pre>
+ * for the tables and phases which have been recorded, and a {@code reset} operation.
+ * The work which isn't for a single table is published under the table name {@code *}.
+ *
+ * @author kawasima
+ */
+public class JmxSnapshotMetrics extends InMemorySnapshotMetrics implements DynamicMBean {
+    private static final String ALL_TABLES = "*";
+    private static final String[] PHASE_ATTRIBUTES = {"elapsedMillis", "count", "rows", "bytes"};
+    private static final String[] TABLE_ATTRIBUTES = {"batches", "batchRows", "batchBytes", "maxBatchRows"};
+
+    private final ObjectName objectName;
+
+    public JmxSnapshotMetrics(String name) {
+        try {
+            objectName = new ObjectName("net.unit8.teslogger.comparator:type=SnapshotMetrics,name="
+                    + ObjectName.quote(name));
+        } catch (MalformedObjectNameException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Registers the MBean to the platform MBean server.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        int dot = attribute.lastIndexOf('.');
+        if (dot > 0) {
+            String prefix = attribute.substring(0, dot);
+            String name = attribute.substring(dot + 1);
+            int phaseDot = prefix.lastIndexOf('.');
+            Phase phase = phaseDot > 0 ? phase(prefix.substring(phaseDot + 1)) : null;
+            if (phase != null) {
+                String tableName = tableName(prefix.substring(0, phaseDot));
+                switch (name) {
+                    case "elapsedMillis": return getElapsedMillis(tableName, phase);
+                    case "count":         return getCount(tableName, phase);
+                    case "rows":          return getRows(tableName, phase);
+                    case "bytes":         return getBytes(tableName, phase);
+                }
+            } else {
+                String tableName = tableName(prefix);
+                switch (name) {
+                    case "batches":      return getBatches(tableName);
+                    case "batchRows":    return getBatchRows(tableName);
+                    case "batchBytes":   return getBatchBytes(tableName);
+                    case "maxBatchRows": return getMaxBatchRows(tableName);
+                }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    private static Phase phase(String name) {
+        for (Phase phase : Phase.values()) {
+            if (phase.name().equals(name)) return phase;
+        }
+        return null;
+    }
+
+    private static String tableName(String name) {
+        return ALL_TABLES.equals(name) ? null : name;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException ignore) {
+                // Omitted as the contract of DynamicMBean allows
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("The attributes are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        if ("reset".equals(actionName) && (params == null || params.length == 0)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        List<String> tableNames = new ArrayList<>();
+        tableNames.add(null);
+        tableNames.addAll(getTableNames());
+        for (String tableName : tableNames) {
+            String name = tableName == null ? ALL_TABLES : tableName;
+            for (Phase phase : Phase.values()) {
+                if (getCount(tableName, phase) == 0 && getRows(tableName, phase) == 0) continue;
+                for (String attribute : PHASE_ATTRIBUTES) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + phase + "." + attribute, "long",
+                            attribute + " of " + phase + " of " + name, true, false, false));
+                }
+            }
+            if (getBatches(tableName) > 0) {
+                for (String attribute : TABLE_ATTRIBUTES) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + attribute, "long",
+                            attribute + " of " + name, true, false, false));
+                }
+            }
+        }
+        MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Clears the metrics",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+        return new MBeanInfo(getClass().getName(), "Metrics of table snapshots",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                new MBeanConstructorInfo[0],
+                new MBeanOperationInfo[]{reset},
+                new MBeanNotificationInfo[0]);
+    }
+}
@@ -0,0 +1,90 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.api.Trigger;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The H2 trigger writing the changed rows of a table into its journal.
+ * It is installed by the {@link CaptureMode#TRIGGER} capture mode.
+ *
+ * @author kawasima
+ */
+public class JournalTrigger implements Trigger {
+    private String insertSql;
+    private int[] pkIndex;
+
+    @Override
+    public void init(Connection conn, String schemaName, String triggerName, String tableName,
+                     boolean before, int type) throws SQLException {
+        DatabaseMetaData md = conn.getMetaData();
+        List<String> columnNames = new ArrayList<>();
+        try (ResultSet rs = md.getColumns(null, schemaName, tableName, "%")) {
+            while (rs.next()) {
+                columnNames.add(rs.getString("COLUMN_NAME"));
+            }
+        }
+        List<Integer> indexes = new ArrayList<>();
+        try (ResultSet rs = md.getPrimaryKeys(null, schemaName, tableName)) {
+            while (rs.next()) {
+                indexes.add(columnNames.indexOf(rs.getString("COLUMN_NAME")));
+            }
+        }
+        pkIndex = new int[indexes.size()];
+        for (int i = 0; i < pkIndex.length; i++) {
+            pkIndex[i] = indexes.get(i);
+        }
+
+        StringBuilder names = new StringBuilder();
+        StringBuilder params = new StringBuilder();
+        for (String columnName : columnNames) {
+            names.append(columnName).append(",");
+            params.append("?,");
+        }
+        insertSql = "INSERT INTO " + schemaName + "." + TriggerJournal.journalTable(tableName)
+                + "(" + names + IncrementalCapture.OP_COLUMN + ") VALUES(" + params + "?)";
+    }
+
+    @Override
+    public void fire(Connection conn, Object[] oldRow, Object[] newRow) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(insertSql)) {
+            if (newRow == null) {
+                journal(stmt, oldRow, "D");
+            } else if (oldRow == null) {
+                journal(stmt, newRow, "I");
+            } else if (keyChanged(oldRow, newRow)) {
+                journal(stmt, oldRow, "D");
+                journal(stmt, newRow, "I");
+            } else {
+                journal(stmt, newRow, "U");
+            }
+        }
+    }
+
+    private boolean keyChanged(Object[] oldRow, Object[] newRow) {
+        for (int i : pkIndex) {
+            if (oldRow[i] == null ? newRow[i] != null : !oldRow[i].equals(newRow[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void journal(PreparedStatement stmt, Object[] row, String op) throws SQLException {
+        for (int i = 0; i < row.length; i++) {
+            stmt.setObject(i + 1, row[i]);
+        }
+        stmt.setString(row.length + 1, op);
+        stmt.executeUpdate();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void remove() {
+    }
+}
@@ -0,0 +1,106 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes the differences as a JSON document with one change per line.
+ *
+ * <pre>
+ * {"headers":["ID","NAME"],"changes":[
+ * {"type":"add","row":["3","new"]},
+ * {"type":"modify","row":["1","after"],"previous":["1","before"]},
+ * {"type":"delete","row":["2","deleted"]}
+ * ]}
+ * </pre>
+ *
+ * @author kawasima
+ */
+public class JsonDiffWriter extends DiffWriter {
+    private boolean first = true;
+
+    public JsonDiffWriter(OutputStream out, List<Column> columns) {
+        super(out, columns);
+    }
+
+    @Override
+    protected void writeStart() throws IOException {
+        writer.write("{\"headers\":");
+        writeArray(headers);
+        writer.write(",\"changes\":[\n");
+    }
+
+    @Override
+    protected void writeAdd(Row row) throws IOException {
+        writeChange("add", row, null);
+    }
+
+    @Override
+    protected void writeModify(Row current, Row previous) throws IOException {
+        writeChange("modify", current, previous);
+    }
+
+    @Override
+    protected void writeDelete(Row row) throws IOException {
+        writeChange("delete", row, null);
+    }
+
+    @Override
+    protected void writeEnd() throws IOException {
+        writer.write(first ? "]}\n" : "\n]}\n");
+    }
+
+    private void writeChange(String type, Row row, Row previous) throws IOException {
+        if (!first) {
+            writer.write(",\n");
+        }
+        first = false;
+        writer.write("{\"type\":\"");
+        writer.write(type);
+        writer.write("\",\"row\":");
+        writeArray(row);
+        if (previous != null) {
+            writer.write(",\"previous\":");
+            writeArray(previous);
+        }
+        writer.write('}');
+    }
+
+    private void writeArray(List<?> values) throws IOException {
+        writer.write('[');
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) writer.write(',');
+            writeValue(values.get(i));
+        }
+        writer.write(']');
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        String s = value.toString();
+        writer.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':  writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,85 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * The length and the content hash of a LOB value, read in place of the value when a row is diffed.
+ *
+ * The LOB is streamed into the hash, so it is never held in memory as a whole.
+ * It is rendered as its type, length and hash.
+ *
+ * @author kawasima
+ */
+final class LobHash {
+    private final String type;
+    private final long length;
+    private final long hash;
+
+    private LobHash(String type, long length, long hash) {
+        this.type = type;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    static LobHash of(Blob blob) throws SQLException {
+        if (blob == null) return null;
+        try (InputStream in = blob.getBinaryStream()) {
+            long hash = RowHasher.FNV_OFFSET;
+            long length = 0;
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                hash = RowHasher.hashValue(hash, n == buf.length ? buf : Arrays.copyOf(buf, n));
+                length += n;
+            }
+            return new LobHash("BLOB", length, hash);
+        } catch (IOException ex) {
+            throw new SQLException(ex);
+        } finally {
+            blob.free();
+        }
+    }
+
+    static LobHash of(Clob clob) throws SQLException {
+        if (clob == null) return null;
+        try (Reader in = clob.getCharacterStream()) {
+            long hash = RowHasher.FNV_OFFSET;
+            long length = 0;
+            char[] buf = new char[4096];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                hash = RowHasher.hashValue(hash, new String(buf, 0, n));
+                length += n;
+            }
+            return new LobHash("CLOB", length, hash);
+        } catch (IOException ex) {
+            throw new SQLException(ex);
+        } finally {
+            clob.free();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof LobHash)) return false;
+        LobHash that = (LobHash) o;
+        return length == that.length && hash == that.hash && type.equals(that.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + length + "," + Long.toHexString(hash) + ")";
+    }
+}
@@ -0,0 +1,168 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped into memory and addressed by long offsets.
+ *
+ * A single mapping can't exceed 2 GB, so the file is mapped in chunks,
+ * and values lying across two chunks are assembled from their bytes.
+ * Reads don't move the positions of the mappings, so a file may be shared between threads.
+ * The mappings are released when the file is closed, and mustn't be read after that.
+ *
+ * @author kawasima
+ */
+class MappedFile implements Closeable {
+    private static final int CHUNK_BITS = 30;
+
+    private final int chunkBits;
+    private MappedByteBuffer[] chunks;
+    private final long size;
+
+    MappedFile(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * @param writable true to map the file for writing as well
+     */
+    MappedFile(File file, boolean writable) throws IOException {
+        this(file, writable, CHUNK_BITS);
+    }
+
+    /**
+     * @param chunkBits the base-2 logarithm of the size of the chunks
+     */
+    MappedFile(File file, boolean writable, int chunkBits) throws IOException {
+        this.chunkBits = chunkBits;
+        try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+             FileChannel channel = raf.getChannel()) {
+            size = channel.size();
+            long chunkSize = 1L << chunkBits;
+            chunks = new MappedByteBuffer[(int) ((size + chunkSize - 1) >>> chunkBits)];
+            for (int i = 0; i < chunks.length; i++) {
+                long position = (long) i << chunkBits;
+                chunks[i] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(chunkSize, size - position));
+            }
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getLong(long position) {
+        MappedByteBuffer chunk = chunk(position);
+        int offset = offset(position);
+        if (offset + 8 <= chunk.limit()) {
+            return chunk.getLong(offset);
+        }
+        byte[] bytes = new byte[8];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    int getInt(long position) {
+        MappedByteBuffer chunk = chunk(position);
+        int offset = offset(position);
+        if (offset + 4 <= chunk.limit()) {
+            return chunk.getInt(offset);
+        }
+        byte[] bytes = new byte[4];
+        read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Reads as many bytes as the array holds.
+     */
+    void read(long position, byte[] bytes) {
+        int read = 0;
+        while (read < bytes.length) {
+            ByteBuffer chunk = chunk(position).duplicate();
+            chunk.position(offset(position));
+            int n = Math.min(bytes.length - read, chunk.remaining());
+            chunk.get(bytes, read, n);
+            read += n;
+            position += n;
+        }
+    }
+
+    /**
+     * Writes a value into a file mapped for writing.
+     */
+    void putLong(long position, long value) {
+        MappedByteBuffer chunk = chunk(position);
+        int offset = offset(position);
+        if (offset + 8 <= chunk.limit()) {
+            chunk.putLong(offset, value);
+            return;
+        }
+        byte[] bytes = ByteBuffer.allocate(8).putLong(value).array();
+        for (int i = 0; i < bytes.length; i++) {
+            chunk(position + i).put(offset(position + i), bytes[i]);
+        }
+    }
+
+    /**
+     * Releases the mappings.
+     */
+    @Override
+    public void close() {
+        if (chunks == null) return;
+        for (MappedByteBuffer chunk : chunks) {
+            unmap(chunk);
+        }
+        chunks = null;
+    }
+
+    /**
+     * Releases a mapping now rather than when it is garbage collected, which keeps the file open
+     * and, on Windows, undeletable. A JVM not allowing it leaves the mapping to the collector.
+     */
+    static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) return;
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException ex) {
+            // Java 8
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ignore) {
+                // Left to the garbage collector
+            }
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+            // Left to the garbage collector
+        }
+    }
+
+    private MappedByteBuffer chunk(long position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " out of " + size);
+        }
+        return chunks[(int) (position >>> chunkBits)];
+    }
+
+    private int offset(long position) {
+        return (int) (position & ((1L << chunkBits) - 1));
+    }
+}
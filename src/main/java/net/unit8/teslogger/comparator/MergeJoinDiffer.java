@@ -0,0 +1,294 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.command.Parser;
+import org.h2.table.Column;
+import org.h2.value.Value;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares two versions of a table by reading both ordered by primary key.
+ *
+ * Only the current row of each side is held in memory, and rows whose keys
+ * and content hashes match are skipped without being materialized.
+ *
+ * @author kawasima
+ */
+class MergeJoinDiffer {
+    private final List<Column> columns;
+    private final RowSchema schema;
+    private final int[] pkIndex;
+
+    MergeJoinDiffer(List<Column> columns, ComparisonPolicy policy) {
+        this.columns = columns;
+        this.schema = new RowSchema(columns, policy);
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isPrimaryKey()) {
+                indexes.add(i);
+            }
+        }
+        pkIndex = new int[indexes.size()];
+        for (int i = 0; i < pkIndex.length; i++) {
+            pkIndex[i] = indexes.get(i);
+        }
+    }
+
+    /**
+     * Whether the table can be merge-joined.
+     * It needs a primary key whose values order the same in Java as in H2.
+     */
+    static boolean supports(List<Column> columns) {
+        boolean hasPk = false;
+        for (Column column : columns) {
+            if (!column.isPrimaryKey()) continue;
+            hasPk = true;
+            switch (column.getType()) {
+                case Value.BOOLEAN:
+                case Value.BYTE:
+                case Value.SHORT:
+                case Value.INT:
+                case Value.LONG:
+                case Value.DECIMAL:
+                case Value.DOUBLE:
+                case Value.FLOAT:
+                case Value.TIME:
+                case Value.DATE:
+                case Value.TIMESTAMP:
+                case Value.STRING:
+                case Value.STRING_FIXED:
+                case Value.UUID:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return hasPk;
+    }
+
+    /**
+     * Returns all the quoted columns separated by commas.
+     */
+    static String columnList(List<Column> columns) {
+        StringBuilder sql = new StringBuilder();
+        for (Column column : columns) {
+            if (sql.length() > 0) sql.append(",");
+            sql.append(Parser.quoteIdentifier(column.getName()));
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Returns the quoted primary key columns separated by commas, or an empty string if there is no primary key.
+     */
+    static String primaryKeyList(List<Column> columns) {
+        StringBuilder sql = new StringBuilder();
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) {
+                if (sql.length() > 0) sql.append(",");
+                sql.append(Parser.quoteIdentifier(column.getName()));
+            }
+        }
+        return sql.toString();
+    }
+
+    void diff(Connection conn, String currentTable, String previousTable, DiffListener listener) throws SQLException {
+        diff(conn, currentTable, previousTable, null, null, listener);
+    }
+
+    /**
+     * Compares the rows whose first primary key column is in the given range.
+     *
+     * @param lower the inclusive lower bound, or null for no bound
+     * @param upper the exclusive upper bound, or null for no bound
+     */
+    void diff(Connection conn, String currentTable, String previousTable, Object lower, Object upper, DiffListener listener) throws SQLException {
+        String firstKey = Parser.quoteIdentifier(columns.get(pkIndex[0]).getName());
+        StringBuilder where = new StringBuilder();
+        if (lower != null) {
+            where.append(" WHERE ").append(firstKey).append(" >= ?");
+        }
+        if (upper != null) {
+            where.append(lower != null ? " AND " : " WHERE ").append(firstKey).append(" < ?");
+        }
+        String condition = where + " ORDER BY " + primaryKeyList(columns);
+        try (PreparedStatement currentStmt = conn.prepareStatement("SELECT * FROM " + currentTable + condition);
+             PreparedStatement previousStmt = conn.prepareStatement("SELECT * FROM " + previousTable + condition)) {
+            bindRange(currentStmt, lower, upper);
+            bindRange(previousStmt, lower, upper);
+            try (ResultSet current = currentStmt.executeQuery();
+                 ResultSet previous = previousStmt.executeQuery()) {
+                diff(current, previous, listener);
+            }
+        }
+    }
+
+    private static void bindRange(PreparedStatement stmt, Object lower, Object upper) throws SQLException {
+        int i = 1;
+        if (lower != null) stmt.setObject(i++, lower);
+        if (upper != null) stmt.setObject(i, upper);
+    }
+
+    /**
+     * Returns values of the first primary key column which split the rows of the table
+     * into about equally sized ranges, in ascending order without duplicates.
+     *
+     * A numeric key is split evenly between its least and greatest values, read by one aggregate query,
+     * so the ranges are only as even as the keys are spread. Other keys are read in one ordered pass.
+     *
+     * @param ranges the number of ranges wanted
+     */
+    List<Object> splitPoints(Connection conn, String table, int ranges) throws SQLException {
+        Column first = columns.get(pkIndex[0]);
+        switch (first.getType()) {
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+                return numericSplitPoints(conn, table, ranges, true);
+            case Value.DECIMAL:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+                return numericSplitPoints(conn, table, ranges, false);
+            default:
+                return scannedSplitPoints(conn, table, ranges);
+        }
+    }
+
+    private List<Object> numericSplitPoints(Connection conn, String table, int ranges, boolean integral) throws SQLException {
+        String firstKey = Parser.quoteIdentifier(columns.get(pkIndex[0]).getName());
+        List<Object> points = new ArrayList<>();
+        BigDecimal min;
+        BigDecimal max;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN(" + firstKey + "), MAX(" + firstKey + ") FROM " + table)) {
+            rs.next();
+            min = rs.getBigDecimal(1);
+            max = rs.getBigDecimal(2);
+        }
+        if (min == null) return points;
+        BigDecimal span = max.subtract(min);
+        BigDecimal last = min;
+        for (int i = 1; i < ranges; i++) {
+            BigDecimal point = min.add(span.multiply(BigDecimal.valueOf(i))
+                    .divide(BigDecimal.valueOf(ranges), MathContext.DECIMAL64));
+            if (integral) {
+                point = point.setScale(0, RoundingMode.FLOOR);
+            }
+            if (point.compareTo(last) > 0) {
+                points.add(integral ? (Object) point.longValue() : point);
+                last = point;
+            }
+        }
+        return points;
+    }
+
+    private List<Object> scannedSplitPoints(Connection conn, String table, int ranges) throws SQLException {
+        String firstKey = Parser.quoteIdentifier(columns.get(pkIndex[0]).getName());
+        long rows;
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            rows = rs.getLong(1);
+        }
+        List<Object> points = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT " + firstKey + " FROM " + table + " ORDER BY " + firstKey)) {
+            long position = 0;
+            int i = 1;
+            while (i < ranges && rs.next()) {
+                for (; i < ranges && rows * i / ranges == position; i++) {
+                    Object point = rs.getObject(1);
+                    // A point at the first key would only make an empty range
+                    if (position > 0 && (points.isEmpty() || !points.get(points.size() - 1).equals(point))) {
+                        points.add(point);
+                    }
+                }
+                position++;
+            }
+        }
+        return points;
+    }
+
+    private void diff(ResultSet current, ResultSet previous, DiffListener listener) throws SQLException {
+        int currentHash  = hashColumn(current);
+        int previousHash = hashColumn(previous);
+        boolean compareHash = currentHash > 0 && previousHash > 0;
+
+        Object[] currentKey = new Object[pkIndex.length];
+        Object[] previousKey = new Object[pkIndex.length];
+        boolean hasCurrent = next(current, currentKey);
+        boolean hasPrevious = next(previous, previousKey);
+
+        while (hasCurrent || hasPrevious) {
+            int cmp;
+            if (!hasCurrent) {
+                cmp = 1;
+            } else if (!hasPrevious) {
+                cmp = -1;
+            } else {
+                cmp = compareKey(currentKey, previousKey);
+            }
+
+            if (cmp < 0) {
+                listener.add(toRow(current));
+                hasCurrent = next(current, currentKey);
+            } else if (cmp > 0) {
+                listener.delete(toRow(previous));
+                hasPrevious = next(previous, previousKey);
+            } else {
+                // Rows with the same content hash are not materialized at all.
+                if (!compareHash || current.getLong(currentHash) != previous.getLong(previousHash)) {
+                    Row currentRow = toRow(current);
+                    Row previousRow = toRow(previous);
+                    if (!currentRow.sameValues(previousRow)) {
+                        listener.modify(currentRow, previousRow);
+                    }
+                }
+                hasCurrent = next(current, currentKey);
+                hasPrevious = next(previous, previousKey);
+            }
+        }
+    }
+
+    private int hashColumn(ResultSet rs) throws SQLException {
+        ResultSetMetaData md = rs.getMetaData();
+        for (int i = columns.size() + 1; i <= md.getColumnCount(); i++) {
+            if (RowHasher.HASH_COLUMN.equalsIgnoreCase(md.getColumnLabel(i))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private boolean next(ResultSet rs, Object[] key) throws SQLException {
+        if (!rs.next()) return false;
+        for (int i = 0; i < pkIndex.length; i++) {
+            key[i] = rs.getObject(pkIndex[i] + 1);
+        }
+        return true;
+    }
+
+    private Row toRow(ResultSet rs) throws SQLException {
+        return schema.read(rs);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compareKey(Object[] key1, Object[] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            int cmp = ((Comparable<Object>) key1[i]).compareTo(key2[i]);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+}
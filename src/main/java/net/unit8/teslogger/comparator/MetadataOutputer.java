@@ -5,7 +5,6 @@ import org.apache.commons.dbcp2.BasicDataSourceFactory;
 
 import javax.sql.DataSource;
 import java.io.FileOutputStream;
-import java.sql.Connection;
 import java.util.List;
 import java.util.Properties;
 
@@ -15,7 +14,7 @@ import java.util.Properties;
 public class MetadataOutputer {
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
-            System.err.println("Usage: java " + MetadataOutputer.class.getName() + " [database url]");
+            System.err.println("Usage: java " + MetadataOutputer.class.getName() + " [database url] [parallelism]");
             System.exit(0);
         }
         Properties props = new Properties();
@@ -23,12 +22,11 @@ public class MetadataOutputer {
         DataSource dataSource = BasicDataSourceFactory.createDataSource(props);
 
         TableSnapshot snapshot = new TableSnapshot(dataSource, "jdbc:h2:mem:dummy");
-        try (Connection conn = dataSource.getConnection()) {
-            List<String> tables = snapshot.listCandidate();
-            for (String table : tables) {
-                snapshot.readMetadata(conn.getMetaData(), table);
-            }
+        if (args.length > 1) {
+            snapshot.setParallelism(Integer.parseInt(args[1]));
         }
+        List<String> tables = snapshot.listCandidate();
+        snapshot.loadMetadata(tables.toArray(new String[tables.size()]));
 
         try (FileOutputStream fos = new FileOutputStream("tabledefs.json")) {
             JSON.encode(snapshot.tableDefs, fos);
@@ -2,59 +2,169 @@ package net.unit8.teslogger.comparator;
 
 import org.h2.table.Column;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
+ * A row of a table.
+ *
+ * Values are stored as read, and are seen as text through the {@link List} interface.
+ *
  * @author kawasima
  */
-public class Row extends ArrayList<Object> implements Cloneable {
-    private List<Integer> pkIndex = new ArrayList<>();
+public class Row extends AbstractList<Object> implements RandomAccess, Cloneable {
+    private final RowSchema schema;
+    private Object[] values;
+    private int size;
 
     public Row(List<Column> columns) {
-        super(columns.size());
-        int i=0;
-        for (Column column : columns) {
-            if (column.isPrimaryKey()) {
-                pkIndex.add(i);
+        this(new RowSchema(columns));
+    }
+
+    Row(RowSchema schema) {
+        this.schema = schema;
+        this.values = new Object[schema.size()];
+    }
+
+    @Override
+    public Object get(int index) {
+        rangeCheck(index);
+        return schema.render(index, values[index]);
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        rangeCheck(index);
+        Object old = get(index);
+        values[index] = value;
+        return old;
+    }
+
+    @Override
+    public void add(int index, Object value) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        if (size == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, size * 2));
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Object remove(int index) {
+        Object old = get(index);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        values[--size] = null;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void rangeCheck(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /**
+     * Returns the columns whose values differ from the other row.
+     */
+    public BitSet changedColumns(Row another) {
+        BitSet changed = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            if (!valueEquals(i, another)) {
+                changed.set(i);
             }
-            i++;
         }
+        return changed;
+    }
+
+    /**
+     * Returns whether all the values are the same as those of the other row.
+     * It stops at the first changed column.
+     */
+    boolean sameValues(Row another) {
+        if (size != another.size) return false;
+        for (int i = 0; i < size; i++) {
+            if (!valueEquals(i, another)) return false;
+        }
+        return true;
     }
 
+    private boolean valueEquals(int index, Row another) {
+        Object v1 = values[index];
+        Object v2 = another.values[index];
+        if (v1 == v2) return true;
+        if (index >= schema.size()) {
+            Object t1 = get(index);
+            Object t2 = another.get(index);
+            return t1 == null ? t2 == null : t1.equals(t2);
+        }
+        return schema.same(index, v1, v2);
+    }
+
+    /**
+     * Returns a copy of this row whose changed values are pairs of this and the other value.
+     */
     public Row diff(Row another) {
-        Row newRow = (Row) this.clone();
-        newRow.clear();
-        for (int i=0; i < this.size(); i++) {
-            Object v1 = this.get(i);
-            Object v2 = another.get(i);
-
-            if (v1 == null && v2 == null) {
-                newRow.add(null);
-            } else if (v1 == null || v2 == null) {
-                newRow.add(new Object[]{v1, v2});
-            } else if (v1.equals(v2)) {
-                newRow.add(v1);
-            } else {
-                newRow.add(new Object[]{v1, v2});
-            }
+        return diff(another, changedColumns(another));
+    }
+
+    Row diff(Row another, BitSet changed) {
+        Row newRow = new Row(schema);
+        for (int i = 0; i < size; i++) {
+            newRow.add(changed.get(i) ? new Object[]{get(i), another.get(i)} : values[i]);
         }
         return newRow;
     }
 
-    public boolean same(Row another) {
-        if (pkIndex.size() == 0) return false;
-
-        boolean isSame = true;
-        for (Integer idx : pkIndex) {
-            Object v1 = this.get(idx);
-            Object v2 = another.get(idx);
-            if (v1 == null || v2 == null) {
-                isSame = false;
-                break;
-            }
-            isSame &= v1.equals(v2);
+    /**
+     * Returns the primary key values of this row as a hashable tuple.
+     *
+     * @return the key, or null if the table has no primary key or a key value is null
+     */
+    public List<Object> getPrimaryKey() {
+        int[] pkIndex = schema.getPrimaryKeyIndex();
+        if (pkIndex.length == 0) return null;
+
+        Object[] key = new Object[pkIndex.length];
+        for (int i=0; i < key.length; i++) {
+            Object v = this.get(pkIndex[i]);
+            if (v == null) return null;
+            key[i] = v;
         }
-        return isSame;
+        return Arrays.asList(key);
+    }
+
+    public boolean same(Row another) {
+        List<Object> key = getPrimaryKey();
+        return key != null && key.equals(another.getPrimaryKey());
+    }
+
+    /**
+     * Returns the stored value, not rendered as text.
+     */
+    Object getValue(int index) {
+        rangeCheck(index);
+        return values[index];
+    }
+
+    RowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public Object clone() {
+        Row row = new Row(schema);
+        row.values = Arrays.copyOf(values, values.length);
+        row.size = size;
+        return row;
     }
 }
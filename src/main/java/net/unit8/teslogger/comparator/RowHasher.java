@@ -0,0 +1,137 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.DataType;
+import org.h2.value.Value;
+import org.h2.value.ValueDecimal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes content hashes and primary key tuples of rows read from a table.
+ *
+ * The hash is a 64-bit FNV-1a over a canonical form of each value.
+ * LOBs are streamed into the hash without being materialized.
+ *
+ * @author kawasima
+ */
+class RowHasher {
+    /** The column holding the row hash in snapshot tables. */
+    static final String HASH_COLUMN = "SNAPSHOT_ROW_HASH";
+
+    static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private final List<Column> columns;
+    private final int[] pkIndex;
+
+    RowHasher(List<Column> columns) {
+        this.columns = columns;
+        int count = 0;
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) count++;
+        }
+        pkIndex = new int[count];
+        int i = 0, j = 0;
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) pkIndex[j++] = i;
+            i++;
+        }
+    }
+
+    boolean hasPrimaryKey() {
+        return pkIndex.length > 0;
+    }
+
+    int[] getPrimaryKeyIndex() {
+        return pkIndex;
+    }
+
+    /**
+     * Returns the primary key of the row, normalized to the H2 column types
+     * so that keys read from the source and from a snapshot table are equal.
+     */
+    List<Value> key(Object[] values) {
+        Value[] key = new Value[pkIndex.length];
+        for (int i = 0; i < pkIndex.length; i++) {
+            key[i] = keyValue(values[pkIndex[i]], columns.get(pkIndex[i]));
+        }
+        return Arrays.asList(key);
+    }
+
+    static Value keyValue(Object x, Column column) {
+        Value v = DataType.convertToValue(null, x, column.getType()).convertTo(column.getType());
+        if (v.getType() == Value.DECIMAL) {
+            BigDecimal bd = v.getBigDecimal().stripTrailingZeros();
+            v = ValueDecimal.get(bd.scale() < 0 ? bd.setScale(0) : bd);
+        }
+        return v;
+    }
+
+    long hash(Object[] values) throws SQLException {
+        long h = FNV_OFFSET;
+        for (Object value : values) {
+            h = hashValue(h, value);
+            h = (h ^ 0x1f) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    static long hashValue(long h, Object value) throws SQLException {
+        if (value == null) {
+            return (h ^ 0xff) * FNV_PRIME;
+        } else if (value instanceof byte[]) {
+            for (byte b : (byte[]) value) {
+                h = (h ^ (b & 0xff)) * FNV_PRIME;
+            }
+            return h;
+        } else if (value instanceof Blob) {
+            try (InputStream in = ((Blob) value).getBinaryStream()) {
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        h = (h ^ (buf[i] & 0xff)) * FNV_PRIME;
+                    }
+                }
+                return h;
+            } catch (IOException ex) {
+                throw new SQLException(ex);
+            }
+        } else if (value instanceof Clob) {
+            try (Reader in = ((Clob) value).getCharacterStream()) {
+                char[] buf = new char[4096];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        h = hashChar(h, buf[i]);
+                    }
+                }
+                return h;
+            } catch (IOException ex) {
+                throw new SQLException(ex);
+            }
+        } else {
+            String s = value instanceof BigDecimal ?
+                    ((BigDecimal) value).stripTrailingZeros().toPlainString()
+                    : value.toString();
+            for (int i = 0; i < s.length(); i++) {
+                h = hashChar(h, s.charAt(i));
+            }
+            return h;
+        }
+    }
+
+    private static long hashChar(long h, char c) {
+        h = (h ^ (c & 0xff)) * FNV_PRIME;
+        return (h ^ (c >>> 8)) * FNV_PRIME;
+    }
+}
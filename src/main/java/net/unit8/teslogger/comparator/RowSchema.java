@@ -0,0 +1,137 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.DataType;
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+import org.h2.value.ValueString;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The columns of a table, shared by all rows read from it.
+ *
+ * Values of numeric and date-time columns are kept as the objects returned by
+ * the driver, and rendered as the text H2 would return only when a row is read
+ * through the {@link List} interface.
+ *
+ * @author kawasima
+ */
+class RowSchema {
+    private final List<Column> columns;
+    private final int[] pkIndex;
+    private final int[] types;
+    private final boolean[] typed;
+    private final ComparisonPolicy policy;
+
+    RowSchema(List<Column> columns) {
+        this(columns, new ComparisonPolicy());
+    }
+
+    RowSchema(List<Column> columns, ComparisonPolicy policy) {
+        this.columns = columns;
+        this.policy = policy;
+        List<Integer> indexes = new ArrayList<>();
+        types = new int[columns.size()];
+        typed = new boolean[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            if (column.isPrimaryKey()) {
+                indexes.add(i);
+            }
+            types[i] = column.getType();
+            typed[i] = isTyped(types[i]);
+        }
+        pkIndex = new int[indexes.size()];
+        for (int i = 0; i < pkIndex.length; i++) {
+            pkIndex[i] = indexes.get(i);
+        }
+    }
+
+    private static boolean isTyped(int type) {
+        switch (type) {
+            case Value.BOOLEAN:
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DECIMAL:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+            case Value.DATE:
+            case Value.TIME:
+            case Value.TIMESTAMP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    List<Column> getColumns() {
+        return columns;
+    }
+
+    int size() {
+        return types.length;
+    }
+
+    int[] getPrimaryKeyIndex() {
+        return pkIndex;
+    }
+
+    /**
+     * Reads the first columns of the current row of the result set.
+     */
+    Row read(ResultSet rs) throws SQLException {
+        Row row = new Row(this);
+        for (int i = 0; i < types.length; i++) {
+            if (typed[i]) {
+                row.add(rs.getObject(i + 1));
+            } else if (types[i] == Value.BLOB) {
+                row.add(LobHash.of(rs.getBlob(i + 1)));
+            } else if (types[i] == Value.CLOB) {
+                row.add(LobHash.of(rs.getClob(i + 1)));
+            } else {
+                row.add(rs.getString(i + 1));
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Converts the text of a value, as a snapshot table returns it, to a value compared by the type of the column.
+     */
+    Object parse(int index, String text) {
+        return text == null || !typed[index] ? text : ValueString.get(text).convertTo(types[index]);
+    }
+
+    /**
+     * Returns whether two stored values of a column are the same.
+     * Values which the policy can't compare by their type are compared as text.
+     */
+    boolean same(int index, Object v1, Object v2) {
+        Boolean same = policy.same(types[index], v1, v2);
+        if (same != null) return same;
+        Object t1 = render(index, v1);
+        Object t2 = render(index, v2);
+        return t1 == null ? t2 == null : t1.equals(t2);
+    }
+
+    /**
+     * Renders a stored value as text. Values other than those read from a table are returned as they are.
+     */
+    Object render(int index, Object value) {
+        if (value == null || value instanceof String || value instanceof Object[]) {
+            return value;
+        } else if (value instanceof Value) {
+            return value == ValueNull.INSTANCE ? null : ((Value) value).getString();
+        } else if (index < types.length && typed[index]) {
+            return DataType.convertToValue(null, value, types[index]).getString();
+        } else {
+            return value.toString();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Keeps the column definitions of tables in a file between runs.
+ *
+ * Each entry is stored with a fingerprint of the table's schema, and is used only while
+ * the table still has the same fingerprint. The fingerprint is the last DDL time of the table
+ * on Oracle, read for all the tables in one round-trip, and a hash of the names, types and sizes
+ * of the columns on other databases, read by one metadata call per requested table.
+ * A change of the primary key alone isn't detected by the column hash.
+ *
+ * <pre>
+ *   int MAGIC, int tables,
+ *   { UTF tableName, long fingerprint, int columns, { column, boolean autoIncrement } * columns } * tables
+ * </pre>
+ *
+ * @author kawasima
+ */
+class SchemaCache {
+    private static final int MAGIC = 0x54534348;
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    SchemaCache(File file) throws IOException {
+        this.file = file;
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a schema cache: " + file);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String tableName = in.readUTF();
+                long fingerprint = in.readLong();
+                List<Column> columns = new ArrayList<>();
+                for (int j = in.readInt(); j > 0; j--) {
+                    Column column = SnapshotFile.readColumn(in);
+                    column.setAutoIncrement(in.readBoolean(), 1, 1);
+                    columns.add(column);
+                }
+                entries.put(tableName, new Entry(fingerprint, columns));
+            }
+        }
+    }
+
+    /**
+     * Returns the cached columns of the table.
+     *
+     * @return the columns, or null if the table isn't cached with the fingerprint
+     */
+    synchronized List<Column> get(String tableName, Long fingerprint) {
+        Entry entry = entries.get(tableName);
+        if (entry == null || fingerprint == null || entry.fingerprint != fingerprint) {
+            return null;
+        }
+        return entry.columns;
+    }
+
+    synchronized void put(String tableName, Long fingerprint, List<Column> columns) {
+        if (fingerprint == null) return;
+        entries.put(tableName, new Entry(fingerprint, columns));
+        dirty = true;
+    }
+
+    /**
+     * Writes the entries to the file if any of them has changed.
+     */
+    synchronized void save() throws IOException {
+        if (!dirty) return;
+        File directory = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().fingerprint);
+                out.writeInt(e.getValue().columns.size());
+                for (Column column : e.getValue().columns) {
+                    SnapshotFile.writeColumn(out, column);
+                    out.writeBoolean(column.isAutoIncrement());
+                }
+            }
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't write " + file);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Reads the schema fingerprints of the tables.
+     *
+     * @return the fingerprints keyed by the table name. Tables which aren't found are absent.
+     */
+    static Map<String, Long> fingerprints(DatabaseMetaData md, String schemaName, Collection<String> tableNames) throws SQLException {
+        Set<String> tables = new HashSet<>(tableNames);
+        Map<String, Long> fingerprints = new HashMap<>();
+        if (md.getURL().startsWith("jdbc:oracle:")) {
+            try (PreparedStatement stmt = md.getConnection().prepareStatement(
+                    "SELECT object_name, last_ddl_time FROM all_objects "
+                            + "WHERE owner = ? AND object_type IN ('TABLE', 'VIEW')")) {
+                stmt.setString(1, schemaName);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        String tableName = rs.getString(1);
+                        if (tables.contains(tableName)) {
+                            fingerprints.put(tableName, rs.getTimestamp(2).getTime());
+                        }
+                    }
+                }
+            }
+            return fingerprints;
+        }
+
+        String escape = md.getSearchStringEscape();
+        for (String tableName : tables) {
+            String pattern = escape == null ? tableName
+                    : tableName.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
+            long fingerprint = RowHasher.FNV_OFFSET;
+            boolean found = false;
+            try (ResultSet rs = md.getColumns(null, schemaName, pattern, "%")) {
+                while (rs.next()) {
+                    if (!tableName.equals(rs.getString("TABLE_NAME"))) continue;
+                    found = true;
+                    fingerprint = RowHasher.hashValue(fingerprint, rs.getString("COLUMN_NAME")
+                            + ":" + rs.getInt("DATA_TYPE")
+                            + ":" + rs.getString("TYPE_NAME")
+                            + ":" + rs.getInt("COLUMN_SIZE")
+                            + ":" + rs.getInt("DECIMAL_DIGITS")
+                            + ":" + rs.getInt("NULLABLE")
+                            + ";");
+                }
+            }
+            if (found) {
+                fingerprints.put(tableName, fingerprint);
+            }
+        }
+        return fingerprints;
+    }
+
+    private static class Entry {
+        final long fingerprint;
+        final List<Column> columns;
+
+        Entry(long fingerprint, List<Column> columns) {
+            this.fingerprint = fingerprint;
+            this.columns = columns;
+        }
+    }
+}
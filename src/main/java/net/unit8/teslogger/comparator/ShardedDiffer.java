@@ -0,0 +1,166 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merge-joins one table in ranges of its first primary key column concurrently.
+ *
+ * The ranges are claimed in key order by the calling thread and by helpers run on the given executor,
+ * each on its own connection to the snapshot database. A range compared by the calling thread when it is
+ * the next one to report is streamed to the listener. The other ranges are buffered, and handed to the
+ * listener as soon as the ranges before them have been, which is the order a single merge join
+ * reports them in. A helper is started for each range reported, so only about as many ranges as
+ * there are workers are buffered at a time.
+ *
+ * The calling thread compares the ranges no helper has started, so the diff completes
+ * even when the executor is busy with the caller itself.
+ *
+ * @author kawasima
+ */
+class ShardedDiffer {
+    private final DataSource snapshotDataSource;
+    private final Executor executor;
+    private final MergeJoinDiffer differ;
+    private final int shards;
+    private final int workers;
+
+    /**
+     * @param executor the executor running the helpers
+     * @param shards   the number of ranges
+     */
+    ShardedDiffer(DataSource snapshotDataSource, Executor executor, List<Column> columns, ComparisonPolicy policy, int shards) {
+        this.snapshotDataSource = snapshotDataSource;
+        this.executor = executor;
+        this.differ = new MergeJoinDiffer(columns, policy);
+        this.shards = shards;
+        this.workers = Math.min(shards, Runtime.getRuntime().availableProcessors() + 1);
+    }
+
+    void diff(Connection conn, final String currentTable, final String previousTable, DiffListener listener) throws SQLException {
+        final List<Object> points = differ.splitPoints(conn, currentTable, shards);
+        if (points.isEmpty()) {
+            differ.diff(conn, currentTable, previousTable, listener);
+            return;
+        }
+
+        final int ranges = points.size() + 1;
+        final AtomicInteger claimed = new AtomicInteger();
+        final List<CompletableFuture<DiffBuffer>> results = new ArrayList<>(ranges);
+        for (int i = 0; i < ranges; i++) {
+            results.add(new CompletableFuture<DiffBuffer>());
+        }
+        Runnable helper = () -> {
+            int range = claimed.getAndIncrement();
+            if (range >= ranges) return;
+            try (Connection shardConn = snapshotDataSource.getConnection()) {
+                DiffBuffer buffer = new DiffBuffer();
+                diff(shardConn, currentTable, previousTable, points, range, buffer);
+                results.get(range).complete(buffer);
+            } catch (SQLException | RuntimeException ex) {
+                results.get(range).completeExceptionally(ex);
+            }
+        };
+
+        try {
+            for (int i = 1; i < workers; i++) {
+                executor.execute(helper);
+            }
+            for (int i = 0; i < ranges; i++) {
+                CompletableFuture<DiffBuffer> result = results.get(i);
+                // Compares the next ranges meanwhile, but no more of them than there are workers
+                while (!result.isDone() && claimed.get() < Math.min(ranges, i + workers)) {
+                    int range = claimed.getAndIncrement();
+                    if (range >= ranges) break;
+                    if (range == i) {
+                        diff(conn, currentTable, previousTable, points, range, listener);
+                        result.complete(null);
+                    } else {
+                        DiffBuffer buffer = new DiffBuffer();
+                        diff(conn, currentTable, previousTable, points, range, buffer);
+                        results.get(range).complete(buffer);
+                    }
+                }
+                DiffBuffer buffer = result.get();
+                results.set(i, null);
+                if (buffer != null) {
+                    buffer.replay(listener);
+                }
+                if (claimed.get() < ranges) {
+                    executor.execute(helper);
+                }
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } finally {
+            // Keeps the helpers still queued from claiming ranges
+            claimed.set(ranges);
+        }
+    }
+
+    private void diff(Connection conn, String currentTable, String previousTable, List<Object> points, int range,
+                      DiffListener listener) throws SQLException {
+        Object lower = range == 0 ? null : points.get(range - 1);
+        Object upper = range == points.size() ? null : points.get(range);
+        differ.diff(conn, currentTable, previousTable, lower, upper, listener);
+    }
+
+    /**
+     * Records the differences of a range in the order they were reported.
+     */
+    private static class DiffBuffer implements DiffListener {
+        private static final int ADD = 0, MODIFY = 1, DELETE = 2;
+        private final List<Row> rows = new ArrayList<>();
+        private final List<Integer> operations = new ArrayList<>();
+
+        @Override
+        public void add(Row row) {
+            operations.add(ADD);
+            rows.add(row);
+        }
+
+        @Override
+        public void modify(Row current, Row previous) {
+            operations.add(MODIFY);
+            rows.add(current);
+            rows.add(previous);
+        }
+
+        @Override
+        public void delete(Row row) {
+            operations.add(DELETE);
+            rows.add(row);
+        }
+
+        void replay(DiffListener listener) {
+            int r = 0;
+            for (int operation : operations) {
+                switch (operation) {
+                    case ADD:
+                        listener.add(rows.get(r++));
+                        break;
+                    case MODIFY:
+                        listener.modify(rows.get(r++), rows.get(r++));
+                        break;
+                    default:
+                        listener.delete(rows.get(r++));
+                }
+            }
+        }
+    }
+}
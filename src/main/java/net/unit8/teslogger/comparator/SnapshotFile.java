@@ -0,0 +1,470 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * A version of a table exported to a binary file.
+ *
+ * The file starts with a header holding the table name, the version and the
+ * column definitions, followed by blocks of rows:
+ * <pre>
+ *   int MAGIC, int headerLength, header
+ *   { int blockLength, int rows, { long hash, value * columns } * rows } *
+ *   int 0, boolean sorted
+ * </pre>
+ * A value is a null flag followed by a fixed-size binary form for numeric and
+ * date-time types, or by a length-prefixed byte array otherwise. The trailing flag
+ * tells whether the rows were written in primary key order.
+ *
+ * Each block is memory-mapped, and rows are decoded straight from the mapped
+ * buffers, so two files can be diffed without loading them into a database.
+ * Files in primary key order are diffed by a merge join of the keys, as
+ * {@link ColumnarSnapshotStore} does. Otherwise the rows are matched by their
+ * hashes, as {@link HashDiffer} does. The buffers are unmapped when the file is closed.
+ *
+ * @author kawasima
+ */
+public class SnapshotFile implements Closeable {
+    static final int MAGIC = 0x54534e50;
+    private static final short FORMAT_VERSION = 2;
+    private static final int SORT_BUFFER_SIZE = 1 << 20;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String tableName;
+    private final long version;
+    private final List<Column> columns;
+    private final List<ByteBuffer> blocks;
+    private final long rowCount;
+    private final boolean sorted;
+
+    private SnapshotFile(String tableName, long version, List<Column> columns, List<ByteBuffer> blocks,
+                         long rowCount, boolean sorted) {
+        this.tableName = tableName;
+        this.version = version;
+        this.columns = columns;
+        this.blocks = blocks;
+        this.rowCount = rowCount;
+        this.sorted = sorted;
+    }
+
+    public static SnapshotFile open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            byte[] header = new byte[raf.readInt()];
+            raf.readFully(header);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+            short format = in.readShort();
+            if (format < 1 || format > FORMAT_VERSION) {
+                throw new IOException("Unsupported format: " + file);
+            }
+            String tableName = in.readUTF();
+            long version = in.readLong();
+            List<Column> columns = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                columns.add(readColumn(in));
+            }
+
+            List<ByteBuffer> blocks = new ArrayList<>();
+            try {
+                long rowCount = 0;
+                long position = raf.getFilePointer();
+                int length;
+                while ((length = raf.readInt()) > 0) {
+                    rowCount += raf.readInt();
+                    blocks.add(channel.map(FileChannel.MapMode.READ_ONLY, position + 4, length));
+                    position += 4 + length;
+                    raf.seek(position);
+                }
+                // The first format didn't record the order of the rows
+                boolean sorted = format > 1 && raf.readBoolean();
+                return new SnapshotFile(tableName, version, columns, blocks, rowCount, sorted);
+            } catch (IOException | RuntimeException ex) {
+                unmap(blocks);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Unmaps the blocks. The file can't be read after it is closed.
+     */
+    @Override
+    public void close() {
+        unmap(blocks);
+    }
+
+    private static void unmap(List<ByteBuffer> blocks) {
+        for (ByteBuffer block : blocks) {
+            MappedFile.unmap(block);
+        }
+        blocks.clear();
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Column> getColumns() {
+        return columns;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns whether the rows were written in primary key order.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public static Diff diff(SnapshotFile from, SnapshotFile to) {
+        return diff(from, to, new ComparisonPolicy());
+    }
+
+    /**
+     * Compares two exported versions of a table, comparing the values of the rows by the policy.
+     */
+    public static Diff diff(SnapshotFile from, SnapshotFile to, ComparisonPolicy policy) {
+        Diff diff = new Diff(to.getColumns());
+        diff(from, to, policy, diff);
+        return diff;
+    }
+
+    public static void diff(SnapshotFile from, SnapshotFile to, DiffListener listener) {
+        diff(from, to, new ComparisonPolicy(), listener);
+    }
+
+    /**
+     * Streams the differences between two exported versions of a table.
+     * Rows only in the {@code to} file are reported as added. Rows whose hashes differ
+     * are reported as modified unless the policy finds their values the same.
+     */
+    public static void diff(SnapshotFile from, SnapshotFile to, ComparisonPolicy policy, DiffListener listener) {
+        RowSchema schema = new RowSchema(to.getColumns(), policy);
+        int[] pkIndex = ColumnarSnapshotStore.primaryKeyIndex(to.getColumns());
+        if (pkIndex.length > 0 && from.sorted && to.sorted) {
+            mergeJoin(from, to, pkIndex, schema, listener);
+            return;
+        }
+        try {
+            new HashDiffer(pkIndex, SORT_BUFFER_SIZE).diff(from.version(schema), to.version(schema), listener);
+        } catch (IOException | SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Walks both files in key order. Rows with the same key are compared by their hashes,
+     * and by their values when the hashes differ.
+     */
+    private static void mergeJoin(SnapshotFile from, SnapshotFile to, int[] pkIndex,
+                                  RowSchema schema, DiffListener listener) {
+        Cursor fromRow = new Cursor(from, pkIndex);
+        Cursor toRow = new Cursor(to, pkIndex);
+        while (fromRow.key != null || toRow.key != null) {
+            int cmp = fromRow.key == null ? 1 : toRow.key == null ? -1
+                    : ColumnarSnapshotStore.compareKey(fromRow.key, toRow.key);
+            if (cmp < 0) {
+                listener.delete(fromRow.row(schema));
+                fromRow.next();
+            } else if (cmp > 0) {
+                listener.add(toRow.row(schema));
+                toRow.next();
+            } else {
+                if (fromRow.hash != toRow.hash) {
+                    Row current = toRow.row(schema);
+                    Row previous = fromRow.row(schema);
+                    if (!current.sameValues(previous)) {
+                        listener.modify(current, previous);
+                    }
+                }
+                fromRow.next();
+                toRow.next();
+            }
+        }
+    }
+
+    /**
+     * Returns the file as read by a {@link HashDiffer}.
+     */
+    private HashDiffer.Version version(final RowSchema schema) {
+        return new HashDiffer.Version() {
+            @Override
+            public void hashes(SortedHashes sorted) throws IOException {
+                for (Cursor cursor = new Cursor(SnapshotFile.this, new int[0]); cursor.key != null; cursor.next()) {
+                    sorted.add(cursor.hash);
+                }
+            }
+
+            @Override
+            public void rows(HashDiffer.RowFilter filter) {
+                for (Cursor cursor = new Cursor(SnapshotFile.this, new int[0]); cursor.key != null; cursor.next()) {
+                    if (filter.accept(cursor.hash)) {
+                        filter.row(cursor.hash, cursor.row(schema));
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Walks the rows in the order they were written, decoding only their hashes and keys.
+     */
+    private static class Cursor {
+        private final SnapshotFile file;
+        private final int[] keyIndex;
+        private int blockIndex = -1;
+        private ByteBuffer block;
+        private int remaining;
+        private int offset;
+        long hash;
+        /** The key of the row, or null past the last row. */
+        Value[] key;
+
+        Cursor(SnapshotFile file, int[] keyIndex) {
+            this.file = file;
+            this.keyIndex = keyIndex;
+            next();
+        }
+
+        void next() {
+            while (remaining == 0) {
+                if (++blockIndex >= file.blocks.size()) {
+                    key = null;
+                    return;
+                }
+                block = file.blocks.get(blockIndex).duplicate();
+                remaining = block.getInt();
+            }
+            remaining--;
+            offset = block.position();
+            hash = block.getLong();
+            key = file.readKey(block, keyIndex);
+        }
+
+        Row row(RowSchema schema) {
+            return file.row(blockIndex, offset, schema);
+        }
+    }
+
+    interface RowHandler {
+        void handle(Value[] values, long hash) throws SQLException;
+    }
+
+    /**
+     * Reads all rows in the order they were written.
+     */
+    void read(RowHandler handler) throws SQLException {
+        for (int i = 0; i < blocks.size(); i++) {
+            ByteBuffer block = blocks.get(i).duplicate();
+            int rows = block.getInt();
+            for (int r = 0; r < rows; r++) {
+                long hash = block.getLong();
+                Value[] values = new Value[columns.size()];
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = readValue(block, columns.get(c));
+                }
+                handler.handle(values, hash);
+            }
+        }
+    }
+
+    /**
+     * Reads the values of the row at the given offset of a block.
+     */
+    Value[] values(int blockIndex, int offset) {
+        ByteBuffer block = blocks.get(blockIndex).duplicate();
+        block.position(offset + 8);
+        Value[] values = new Value[columns.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readValue(block, columns.get(i));
+        }
+        return values;
+    }
+
+    private Row row(int blockIndex, int offset, RowSchema schema) {
+        Row row = new Row(schema);
+        for (Value value : values(blockIndex, offset)) {
+            row.add(value == ValueNull.INSTANCE ? null : value);
+        }
+        return row;
+    }
+
+    /**
+     * Reads the key of the row the block is positioned at, leaving it at the next row.
+     * The values are converted to the types of their columns, so that they compare in key order.
+     */
+    private Value[] readKey(ByteBuffer block, int[] keyIndex) {
+        Value[] key = new Value[keyIndex.length];
+        for (int i = 0, k = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            if (k < keyIndex.length && keyIndex[k] == i) {
+                key[k++] = readValue(block, column).convertTo(column.getType());
+            } else {
+                skipValue(block, column);
+            }
+        }
+        return key;
+    }
+
+    static void writeHeader(DataOutputStream out, String tableName, long version, List<Column> columns) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeShort(FORMAT_VERSION);
+        headerOut.writeUTF(tableName);
+        headerOut.writeLong(version);
+        headerOut.writeInt(columns.size());
+        for (Column column : columns) {
+            writeColumn(headerOut, column);
+        }
+        headerOut.flush();
+        out.writeInt(MAGIC);
+        out.writeInt(header.size());
+        header.writeTo(out);
+    }
+
+    static void writeColumn(DataOutput out, Column column) throws IOException {
+        out.writeUTF(column.getName());
+        out.writeInt(column.getType());
+        out.writeLong(column.getPrecision());
+        out.writeInt(column.getScale());
+        out.writeInt(column.getDisplaySize());
+        out.writeBoolean(column.isNullable());
+        out.writeBoolean(column.isPrimaryKey());
+    }
+
+    static Column readColumn(DataInput in) throws IOException {
+        Column column = new Column(in.readUTF(), in.readInt(), in.readLong(), in.readInt(), in.readInt());
+        column.setNullable(in.readBoolean());
+        column.setPrimaryKey(in.readBoolean());
+        return column;
+    }
+
+    static void writeValue(DataOutputStream out, Object x, Column column) throws IOException {
+        if (x == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        if (x instanceof Blob || x instanceof Clob) {
+            writeBytes(out, ColumnarSnapshotStore.toText(x, column).getBytes(UTF_8));
+            return;
+        }
+        Value v = DataType.convertToValue(null, x, column.getType()).convertTo(column.getType());
+        switch (column.getType()) {
+            case Value.BOOLEAN:
+                out.writeBoolean(v.getBoolean());
+                break;
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+                out.writeLong(v.getLong());
+                break;
+            case Value.DOUBLE:
+            case Value.FLOAT:
+                out.writeDouble(v.getDouble());
+                break;
+            case Value.DATE:
+                out.writeLong(((ValueDate) v).getDateValue());
+                break;
+            case Value.TIME:
+                out.writeLong(((ValueTime) v).getNanos());
+                break;
+            case Value.TIMESTAMP:
+                out.writeLong(((ValueTimestamp) v).getDateValue());
+                out.writeLong(((ValueTimestamp) v).getTimeNanos());
+                break;
+            case Value.BYTES:
+                writeBytes(out, v.getBytesNoCopy());
+                break;
+            default:
+                writeBytes(out, v.getString().getBytes(UTF_8));
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static Value readValue(ByteBuffer buf, Column column) {
+        if (buf.get() == 0) return ValueNull.INSTANCE;
+        switch (column.getType()) {
+            case Value.BOOLEAN:
+                return ValueBoolean.get(buf.get() != 0);
+            case Value.BYTE:
+                return ValueByte.get((byte) buf.getLong());
+            case Value.SHORT:
+                return ValueShort.get((short) buf.getLong());
+            case Value.INT:
+                return ValueInt.get((int) buf.getLong());
+            case Value.LONG:
+                return ValueLong.get(buf.getLong());
+            case Value.DOUBLE:
+                return ValueDouble.get(buf.getDouble());
+            case Value.FLOAT:
+                return ValueFloat.get((float) buf.getDouble());
+            case Value.DATE:
+                return ValueDate.fromDateValue(buf.getLong());
+            case Value.TIME:
+                return ValueTime.fromNanos(buf.getLong());
+            case Value.TIMESTAMP:
+                return ValueTimestamp.fromDateValueAndNanos(buf.getLong(), buf.getLong());
+            case Value.BYTES:
+                return ValueBytes.getNoCopy(readBytes(buf));
+            default:
+                return ValueString.get(new String(readBytes(buf), UTF_8));
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void skipValue(ByteBuffer buf, Column column) {
+        if (buf.get() == 0) return;
+        switch (column.getType()) {
+            case Value.BOOLEAN:
+                buf.position(buf.position() + 1);
+                break;
+            case Value.TIMESTAMP:
+                buf.position(buf.position() + 16);
+                break;
+            case Value.BYTE:
+            case Value.SHORT:
+            case Value.INT:
+            case Value.LONG:
+            case Value.DOUBLE:
+            case Value.FLOAT:
+            case Value.DATE:
+            case Value.TIME:
+                buf.position(buf.position() + 8);
+                break;
+            default:
+                int length = buf.getInt();
+                buf.position(buf.position() + length);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Writes a version of a table in the {@link SnapshotFile} format.
+ * Whether the rows arrived in primary key order is recorded at the end of the file.
+ *
+ * @author kawasima
+ */
+class SnapshotFileWriter implements SnapshotStore.Writer, Closeable {
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private final DataOutputStream out;
+    private final List<Column> columns;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 8192);
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final TableChecksum checksum = new TableChecksum();
+    private final int[] keyIndex;
+    private int blockRows;
+    private Value[] lastKey;
+    private boolean sorted = true;
+
+    SnapshotFileWriter(File file, String tableName, long version, List<Column> columns) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.columns = columns;
+        keyIndex = ColumnarSnapshotStore.primaryKeyIndex(columns);
+        SnapshotFile.writeHeader(out, tableName, version, columns);
+    }
+
+    @Override
+    public void write(Object[] values, long hash) throws IOException {
+        blockOut.writeLong(hash);
+        for (int i = 0; i < values.length; i++) {
+            SnapshotFile.writeValue(blockOut, values[i], columns.get(i));
+        }
+        if (sorted && keyIndex.length > 0) {
+            Value[] key = new Value[keyIndex.length];
+            for (int k = 0; k < key.length; k++) {
+                Column column = columns.get(keyIndex[k]);
+                key[k] = ColumnarSnapshotStore.keyValue(ColumnarSnapshotStore.toText(values[keyIndex[k]], column), column);
+            }
+            // Rows out of key order are diffed by their hashes instead of by a merge join
+            sorted = lastKey == null || ColumnarSnapshotStore.compareKey(lastKey, key) < 0;
+            lastKey = key;
+        }
+        blockRows++;
+        checksum.add(hash);
+        if (block.size() >= BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    @Override
+    public TableChecksum finish() throws IOException {
+        flushBlock();
+        out.writeInt(0);
+        out.writeBoolean(sorted && keyIndex.length > 0);
+        out.flush();
+        return checksum;
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockRows == 0) return;
+        blockOut.flush();
+        out.writeInt(block.size() + 4);
+        out.writeInt(blockRows);
+        block.writeTo(out);
+        block.reset();
+        blockRows = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,83 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * Receives the timings and counts of the work done by {@link TableSnapshot} and {@link Versioning}.
+ *
+ * Implementations are called from the copying and diffing threads concurrently,
+ * and should return quickly.
+ *
+ * @author kawasima
+ * @see InMemorySnapshotMetrics
+ * @see JmxSnapshotMetrics
+ */
+public interface SnapshotMetrics {
+    /**
+     * Discards everything.
+     */
+    SnapshotMetrics NONE = new SnapshotMetrics() {
+        @Override
+        public void time(String tableName, Phase phase, long nanos) {
+        }
+
+        @Override
+        public void rows(String tableName, Phase phase, long rows, long bytes) {
+        }
+
+        @Override
+        public void batch(String tableName, int rows, long bytes) {
+        }
+    };
+
+    enum Phase {
+        /** Reading the column definitions of the source table. */
+        METADATA,
+        /** Probing the source table for changes. */
+        PROBE,
+        /** Creating the version table. */
+        CREATE,
+        /** Copying the source table into a version, from the query to the last commit. */
+        COPY,
+        /** Executing the JDBC batches of a copy. */
+        INSERT,
+        /** Committing a copy. */
+        COMMIT,
+        /** Diffing two versions of a table, whatever the engine. */
+        DIFF,
+        /** Querying the added rows by {@link DiffEngine#MINUS}. Its rows are the added rows of any engine. */
+        DIFF_ADD,
+        /** Querying the deleted rows by {@link DiffEngine#MINUS}. Its rows are the deleted rows of any engine. */
+        DIFF_DELETE,
+        /** Pairing added and deleted rows by {@link DiffEngine#MINUS}. Its rows are the modified rows of any engine. */
+        DIFF_MODIFY,
+        /** Updating the version records. */
+        VERSIONING
+    }
+
+    /**
+     * Records the time spent in a phase.
+     *
+     * @param tableName the name of the table, or null if the work isn't for a single table
+     * @param phase     the phase
+     * @param nanos     the elapsed time in nanoseconds
+     */
+    void time(String tableName, Phase phase, long nanos);
+
+    /**
+     * Records the rows processed in a phase.
+     *
+     * @param tableName the name of the table
+     * @param phase     the phase
+     * @param rows      the number of rows
+     * @param bytes     the estimated size of the rows, or 0 if it isn't known
+     */
+    void rows(String tableName, Phase phase, long rows, long bytes);
+
+    /**
+     * Records a JDBC batch executed while copying a table.
+     *
+     * @param tableName the name of the table written
+     * @param rows      the number of rows in the batch
+     * @param bytes     the estimated size of the rows in the batch
+     */
+    void batch(String tableName, int rows, long bytes);
+}
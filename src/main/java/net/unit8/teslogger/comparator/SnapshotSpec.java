@@ -0,0 +1,107 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What to capture of a table: the rows matching a predicate, and a subset of the columns.
+ *
+ * The predicate is appended to the source query as its WHERE clause.
+ * Primary key columns are always captured, even if they are excluded or not included.
+ * The spec of a table should stay the same between the versions compared.
+ *
+ * @author kawasima
+ */
+public class SnapshotSpec {
+    private final String tableName;
+    private String where;
+    private Set<String> includeColumns = Collections.emptySet();
+    private Set<String> excludeColumns = Collections.emptySet();
+    private List<String> logicalKey = Collections.emptyList();
+
+    public SnapshotSpec(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getWhere() {
+        return where;
+    }
+
+    /**
+     * Sets the predicate of the rows captured, in the SQL of the source database.
+     *
+     * @param where the predicate, or null to capture all rows
+     */
+    public void setWhere(String where) {
+        this.where = where;
+    }
+
+    /**
+     * Sets the only columns captured. When none are given, all columns are captured.
+     */
+    public void setIncludeColumns(String... columns) {
+        includeColumns = names(columns);
+    }
+
+    /**
+     * Sets the columns not captured.
+     */
+    public void setExcludeColumns(String... columns) {
+        excludeColumns = names(columns);
+    }
+
+    public List<String> getLogicalKey() {
+        return logicalKey;
+    }
+
+    /**
+     * Sets the columns identifying the rows of a table without a primary key.
+     * They are used by {@link DiffEngine#EXTERNAL_SORT} to report an added and a deleted row
+     * with the same key as a modification.
+     */
+    public void setLogicalKey(String... columns) {
+        logicalKey = Collections.unmodifiableList(Arrays.asList(columns.clone()));
+    }
+
+    private static Set<String> names(String[] columns) {
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        names.addAll(Arrays.asList(columns));
+        return names;
+    }
+
+    /**
+     * Returns the captured columns of the table.
+     */
+    List<Column> project(List<Column> columns) {
+        Set<String> unknown = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        unknown.addAll(includeColumns);
+        unknown.addAll(excludeColumns);
+        List<Column> projected = new ArrayList<>(columns.size());
+        for (Column column : columns) {
+            String name = column.getName();
+            unknown.remove(name);
+            if (column.isPrimaryKey()
+                    || (includeColumns.isEmpty() || includeColumns.contains(name)) && !excludeColumns.contains(name)) {
+                projected.add(column);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Unknown columns in " + tableName + ": " + unknown);
+        }
+        return projected;
+    }
+
+    boolean isProjected() {
+        return !includeColumns.isEmpty() || !excludeColumns.isEmpty();
+    }
+}
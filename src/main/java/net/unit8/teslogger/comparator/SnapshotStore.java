@@ -0,0 +1,59 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage of the rows of snapshot versions.
+ *
+ * When no store is set to {@link TableSnapshot}, the versions are kept
+ * as tables of the H2 snapshot database. The store is closed when the snapshot is disposed.
+ *
+ * @author kawasima
+ */
+public interface SnapshotStore extends Closeable {
+    /**
+     * Starts writing a version of the table.
+     */
+    Writer createWriter(String tableName, long version, List<Column> columns) throws IOException;
+
+    /**
+     * Streams the differences between two versions of the table.
+     * Rows only in the {@code toVersion} are reported as added. Rows whose hashes differ
+     * are reported as modified unless the policy finds their values the same.
+     */
+    void diff(String tableName, long fromVersion, long toVersion, List<Column> columns,
+              ComparisonPolicy policy, DiffListener listener) throws IOException;
+
+    /**
+     * Removes a version of the table.
+     */
+    void drop(String tableName, long version) throws IOException;
+
+    /**
+     * Releases the files the store holds open. The store keeps none by default.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+
+    interface Writer {
+        /**
+         * Writes a row. The array may be reused after this method returns.
+         *
+         * @param values the values read from the source table
+         * @param hash   the content hash of the row
+         */
+        void write(Object[] values, long hash) throws IOException;
+
+        /**
+         * Completes the version. A version which isn't finished is never visible.
+         *
+         * @return the checksum of the written rows
+         */
+        TableChecksum finish() throws IOException;
+    }
+}
@@ -0,0 +1,194 @@
+package net.unit8.teslogger.comparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts row hashes in runs of a bounded size and merges them.
+ *
+ * The hashes are added in any order. A full run is sorted and spilled to a temporary file,
+ * and the last run stays in memory. The spilled runs are deleted when closed.
+ *
+ * @author kawasima
+ */
+class SortedHashes implements Closeable {
+    private final int bufferSize;
+    private long[] buffer;
+    private int size;
+    private final List<File> files = new ArrayList<>();
+    private final List<FileRun> fileRuns = new ArrayList<>();
+    private final PriorityQueue<Run> queue = new PriorityQueue<>(11, new Comparator<Run>() {
+        @Override
+        public int compare(Run r1, Run r2) {
+            return Long.compare(r1.head, r2.head);
+        }
+    });
+
+    /**
+     * @param bufferSize the number of hashes sorted in memory
+     */
+    SortedHashes(int bufferSize) {
+        this.bufferSize = bufferSize;
+        buffer = new long[Math.min(bufferSize, 1024)];
+    }
+
+    void add(long hash) throws IOException {
+        if (size == buffer.length) {
+            if (size < bufferSize) {
+                buffer = Arrays.copyOf(buffer, Math.min(bufferSize, size * 2));
+            } else {
+                spill();
+            }
+        }
+        buffer[size++] = hash;
+    }
+
+    /**
+     * Ends the adding of hashes and starts merging the runs.
+     */
+    void finish() throws IOException {
+        Arrays.sort(buffer, 0, size);
+        addRun(new MemoryRun(buffer, size));
+    }
+
+    private void spill() throws IOException {
+        Arrays.sort(buffer, 0, size);
+        File file = File.createTempFile("snapshot-sort", ".run");
+        files.add(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(buffer[i]);
+            }
+        }
+        size = 0;
+        FileRun run = new FileRun(file);
+        fileRuns.add(run);
+        addRun(run);
+    }
+
+    private void addRun(Run run) throws IOException {
+        if (run.advance()) {
+            queue.add(run);
+        }
+    }
+
+    boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    long peek() {
+        return queue.peek().head;
+    }
+
+    /**
+     * Skips the occurrences of the hash at the head.
+     *
+     * @return the number of occurrences skipped
+     */
+    int skip(long hash) throws IOException {
+        int count = 0;
+        while (!queue.isEmpty() && queue.peek().head == hash) {
+            Run run = queue.poll();
+            count++;
+            addRun(run);
+        }
+        return count;
+    }
+
+    /**
+     * Merges the hashes of two versions, counting how many copies of each hash were added and deleted.
+     * The counts are written in hash order.
+     */
+    static void merge(SortedHashes current, SortedHashes previous,
+                      HashCounts added, HashCounts deleted) throws IOException {
+        while (current.hasNext() || previous.hasNext()) {
+            long hash = !previous.hasNext() || current.hasNext() && current.peek() < previous.peek() ?
+                    current.peek() : previous.peek();
+            int difference = current.skip(hash) - previous.skip(hash);
+            if (difference > 0) {
+                added.add(hash, difference);
+            } else if (difference < 0) {
+                deleted.add(hash, -difference);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (FileRun run : fileRuns) {
+            try {
+                run.in.close();
+            } catch (IOException ignore) {
+                // The file is deleted anyway
+            }
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * A sorted sequence of hashes.
+     */
+    private static abstract class Run {
+        long head;
+
+        /**
+         * Moves to the next hash.
+         *
+         * @return false if there are no more hashes
+         */
+        abstract boolean advance() throws IOException;
+    }
+
+    private static class MemoryRun extends Run {
+        private final long[] hashes;
+        private final int size;
+        private int position;
+
+        MemoryRun(long[] hashes, int size) {
+            this.hashes = hashes;
+            this.size = size;
+        }
+
+        @Override
+        boolean advance() {
+            if (position >= size) return false;
+            head = hashes[position++];
+            return true;
+        }
+    }
+
+    private static class FileRun extends Run {
+        private final DataInputStream in;
+
+        FileRun(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                head = in.readLong();
+                return true;
+            } catch (EOFException ex) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Reads the rows of a source table in the order of its table definition.
+ *
+ * The column indexes and the {@link ColumnAccessor}s are resolved once from the
+ * table definition and the result set metadata.
+ *
+ * @author kawasima
+ */
+class SourceReader {
+    private final ResultSet rs;
+    private final int[] indexes;
+    private final ColumnAccessor[] accessors;
+    /** Whether a value may be a LOB locator, which is read through the result set. */
+    private final boolean locators;
+
+    SourceReader(ResultSet rs, List<Column> columns) throws SQLException {
+        this.rs = rs;
+        ResultSetMetaData rsMeta = rs.getMetaData();
+        indexes = new int[columns.size()];
+        accessors = new ColumnAccessor[columns.size()];
+        boolean locators = false;
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = rs.findColumn(columns.get(i).getName());
+            accessors[i] = ColumnAccessor.of(rsMeta.getColumnType(indexes[i]));
+            locators |= accessors[i] == ColumnAccessor.OBJECT;
+        }
+        this.locators = locators;
+    }
+
+    int getColumnCount() {
+        return indexes.length;
+    }
+
+    /**
+     * Moves to the next row and reads its values.
+     *
+     * @param values the array filled with the values
+     * @return false if there are no more rows
+     */
+    boolean next(Object[] values) throws SQLException {
+        if (!rs.next()) return false;
+        for (int i = 0; i < indexes.length; i++) {
+            values[i] = accessors[i].get(rs, indexes[i]);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the LOB locators among the values read by their content,
+     * so that the values stay valid after the result set has moved on.
+     * The content hashes and binds the same as the locator.
+     *
+     * @param values the values read by {@link #next(Object[])}
+     */
+    void detach(Object[] values) throws SQLException {
+        if (!locators) return;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] instanceof Blob) {
+                Blob blob = (Blob) values[i];
+                long length = blob.length();
+                if (length > Integer.MAX_VALUE - 8) {
+                    throw new SQLException("The BLOB is too large to be buffered. Disable the pipelined copy.");
+                }
+                values[i] = blob.getBytes(1, (int) length);
+                blob.free();
+            } else if (values[i] instanceof Clob) {
+                Clob clob = (Clob) values[i];
+                long length = clob.length();
+                if (length > Integer.MAX_VALUE - 8) {
+                    throw new SQLException("The CLOB is too large to be buffered. Disable the pipelined copy.");
+                }
+                values[i] = clob.getSubString(1, (int) length);
+                clob.free();
+            }
+        }
+    }
+
+    /**
+     * Binds the values read by this reader to the first parameters of the statement.
+     */
+    void bind(PreparedStatement stmt, Object[] values) throws SQLException {
+        for (int i = 0; i < accessors.length; i++) {
+            accessors[i].set(stmt, i + 1, values[i]);
+        }
+    }
+}
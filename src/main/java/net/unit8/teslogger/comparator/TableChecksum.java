@@ -0,0 +1,58 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * An order-independent checksum of the rows of a table version.
+ *
+ * It is the row count and the sum of the row hashes, so it can be
+ * updated when rows are added or removed without rescanning the table.
+ *
+ * @author kawasima
+ */
+public class TableChecksum {
+    private long rowCount;
+    private long checksum;
+
+    public TableChecksum() {
+    }
+
+    public TableChecksum(long rowCount, long checksum) {
+        this.rowCount = rowCount;
+        this.checksum = checksum;
+    }
+
+    public void add(long rowHash) {
+        rowCount++;
+        checksum += rowHash;
+    }
+
+    public void remove(long rowHash) {
+        rowCount--;
+        checksum -= rowHash;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TableChecksum)) return false;
+        TableChecksum that = (TableChecksum) o;
+        return rowCount == that.rowCount && checksum == that.checksum;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * rowCount + (checksum ^ (checksum >>> 32)));
+    }
+
+    @Override
+    public String toString() {
+        return "TableChecksum{rowCount=" + rowCount + ", checksum=" + Long.toHexString(checksum) + "}";
+    }
+}
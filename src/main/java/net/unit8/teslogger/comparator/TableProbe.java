@@ -0,0 +1,63 @@
+package net.unit8.teslogger.comparator;
+
+/**
+ * A cheap fingerprint of a source table, used to find the tables which have changed since a version.
+ *
+ * It is the row count, the greatest value of the first primary key column,
+ * and the sum of the hashes of the primary key and a sample of the other columns of each row.
+ * Equal probes don't prove that the table is unchanged, as the columns out of the sample aren't read.
+ *
+ * @author kawasima
+ */
+public class TableProbe {
+    private final long rowCount;
+    private final String maxKey;
+    private final long hash;
+
+    public TableProbe(long rowCount, String maxKey, long hash) {
+        this.rowCount = rowCount;
+        this.maxKey = maxKey;
+        this.hash = hash;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the greatest value of the first primary key column,
+     * or null if the table is empty or has no primary key.
+     */
+    public String getMaxKey() {
+        return maxKey;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * Returns whether the probe has the given row count and greatest key.
+     */
+    boolean hasSameBounds(long rowCount, String maxKey) {
+        return this.rowCount == rowCount && (this.maxKey == null ? maxKey == null : this.maxKey.equals(maxKey));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TableProbe)) return false;
+        TableProbe that = (TableProbe) o;
+        return hash == that.hash && hasSameBounds(that.rowCount, that.maxKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (31 * rowCount + (hash ^ (hash >>> 32)));
+    }
+
+    @Override
+    public String toString() {
+        return "TableProbe{rowCount=" + rowCount + ", maxKey=" + maxKey + ", hash=" + Long.toHexString(hash) + "}";
+    }
+}
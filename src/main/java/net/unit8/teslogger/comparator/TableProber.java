@@ -0,0 +1,120 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.command.Parser;
+import org.h2.table.Column;
+import org.h2.value.Value;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the {@link TableProbe} of a source table.
+ *
+ * The row count and the greatest key are read by an aggregate query, which an index on the
+ * primary key makes cheap. The hash needs a scan of the primary key and the sampled columns,
+ * so it is read only when the aggregates haven't already told that the table changed.
+ * The sample is spread evenly over the non-key columns, and LOB columns are never sampled.
+ *
+ * @author kawasima
+ */
+class TableProber {
+    private final String tableName;
+    private final String where;
+    private final List<Column> probedColumns;
+    private final Column firstKey;
+    private final int fetchSize;
+
+    /**
+     * @param columns       the captured columns of the table
+     * @param where         the condition of the captured rows, or null
+     * @param sampleColumns the number of non-key columns hashed
+     */
+    TableProber(String tableName, List<Column> columns, String where, int sampleColumns, int fetchSize) {
+        this.tableName = tableName;
+        this.where = where;
+        this.fetchSize = fetchSize;
+
+        List<Column> candidates = new ArrayList<>();
+        Column key = null;
+        for (Column column : columns) {
+            if (column.isPrimaryKey()) {
+                if (key == null) key = column;
+            } else if (column.getType() != Value.BLOB && column.getType() != Value.CLOB) {
+                candidates.add(column);
+            }
+        }
+        firstKey = key;
+
+        List<Column> sampled = new ArrayList<>();
+        int n = Math.min(sampleColumns, candidates.size());
+        for (int i = 0; i < n; i++) {
+            sampled.add(candidates.get(i * candidates.size() / n));
+        }
+        probedColumns = new ArrayList<>();
+        for (Column column : columns) {
+            if (column.isPrimaryKey() || sampled.contains(column)) {
+                probedColumns.add(column);
+            }
+        }
+    }
+
+    /**
+     * Computes the whole probe of the table.
+     */
+    TableProbe probe(Connection conn) throws SQLException {
+        TableProbe bounds = bounds(conn);
+        return new TableProbe(bounds.getRowCount(), bounds.getMaxKey(), hash(conn));
+    }
+
+    /**
+     * Returns whether the table has the given probe, reading the hash only if the bounds are the same.
+     */
+    boolean matches(Connection conn, TableProbe probe) throws SQLException {
+        TableProbe bounds = bounds(conn);
+        return probe.hasSameBounds(bounds.getRowCount(), bounds.getMaxKey()) && probe.getHash() == hash(conn);
+    }
+
+    /**
+     * Reads the row count and the greatest key. The hash of the returned probe is 0.
+     */
+    private TableProbe bounds(Connection conn) throws SQLException {
+        String sql = "SELECT COUNT(*)"
+                + (firstKey == null ? "" : ", MAX(" + Parser.quoteIdentifier(firstKey.getName()) + ")")
+                + from();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return new TableProbe(rs.getLong(1), firstKey == null ? null : rs.getString(2), 0L);
+        }
+    }
+
+    /**
+     * Scans the probed columns and sums the hashes of the rows.
+     */
+    private long hash(Connection conn) throws SQLException {
+        if (probedColumns.isEmpty()) return 0L;
+        RowHasher hasher = new RowHasher(probedColumns);
+        long sum = 0L;
+        try (Statement stmt = conn.createStatement()) {
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT " + MergeJoinDiffer.columnList(probedColumns) + from())) {
+                SourceReader reader = new SourceReader(rs, probedColumns);
+                Object[] values = new Object[probedColumns.size()];
+                while (reader.next(values)) {
+                    sum += hasher.hash(values);
+                }
+            }
+        }
+        return sum;
+    }
+
+    private String from() {
+        return " FROM " + tableName + (where == null ? "" : " WHERE " + where);
+    }
+}
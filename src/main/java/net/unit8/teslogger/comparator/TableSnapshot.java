@@ -1,29 +1,45 @@
 package net.unit8.teslogger.comparator;
 
 import net.arnx.jsonic.JSON;
+import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.h2.message.DbException;
 import org.h2.table.Column;
 import org.h2.value.DataType;
+import org.h2.value.Value;
 
 import javax.sql.DataSource;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * Takes snapshots of tables and diffs their versions.
+ *
+ * An instance may be shared between threads. The snapshot database is accessed through
+ * a connection pool, and each table is locked while it is taken, diffed or pruned,
+ * so operations on different tables run concurrently.
+ *
  * @author kawasima
  */
 public class TableSnapshot {
     private static final Log log = LogFactory.getLog(TableSnapshot.class);
     private String schemaName;
     private DataSource dataSource;
+    private DataSource snapshotDataSource;
+    private BasicDataSource ownedSnapshotDataSource;
+    /** Held for the lifetime of the instance by {@link Versioning}. It also keeps an in-memory database open. */
     private Connection snapshotConnection;
-    protected Map<String, List<Column>> tableDefs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    protected Map<String, List<Column>> tableDefs = Collections.synchronizedMap(
+            new TreeMap<String, List<Column>>(String.CASE_INSENSITIVE_ORDER));
     private Map<Integer, Integer> maximumScales = new HashMap<Integer, Integer>();
     private Map<Integer, Integer> precisions = new HashMap<Integer, Integer>();
 
@@ -33,16 +49,51 @@ public class TableSnapshot {
         EXTRA_TYPE_MAP.put("BINARY_FLOAT", Types.FLOAT);
     }
 
-    private long BULK_COUNT = 1000L;
+    private int batchSize = 1000;
+    private long batchBytes = 0L;
+    private int commitInterval = 0;
+    private int fetchSize = 0;
+    private int pipelineBufferSize = 0;
+    private Map<String, CopyStatistics> copyStatistics = new ConcurrentHashMap<>();
     private TableNameNormalizer normalizer;
+    private int parallelism = 1;
+    private int diffShards = 1;
+    private int sortBufferSize = 1 << 20;
+    private ComparisonPolicy comparisonPolicy = new ComparisonPolicy();
+    private DiffEngine diffEngine = DiffEngine.MERGE_JOIN;
+    private CaptureMode captureMode = CaptureMode.FULL;
+    private SnapshotStore snapshotStore;
+    private SchemaCache schemaCache;
+    private SnapshotMetrics metrics = SnapshotMetrics.NONE;
+    private int probeColumns = -1;
 
-    private Versioning versioning;
+    private Map<String, SnapshotSpec> specs = new ConcurrentHashMap<>();
 
+    private final ConcurrentHashMap<String, ReentrantReadWriteLock> tableLocks = new ConcurrentHashMap<>();
+
+    private volatile Versioning versioning;
+    private Executor asyncExecutor;
+    private ExecutorService ownedAsyncExecutor;
+
+    /**
+     * @param dataSource the source database
+     * @param url        the url of the snapshot database. It must be shared between connections,
+     *                   such as a file or a named in-memory database.
+     */
     public TableSnapshot(DataSource dataSource, String url) {
+        this(dataSource, createPool(url));
+        ownedSnapshotDataSource = (BasicDataSource) snapshotDataSource;
+    }
+
+    /**
+     * @param dataSource         the source database
+     * @param snapshotDataSource the snapshot database, usually a connection pool
+     */
+    public TableSnapshot(DataSource dataSource, DataSource snapshotDataSource) {
         setDataSource(dataSource);
-        org.h2.Driver.load();
+        this.snapshotDataSource = snapshotDataSource;
         try (Connection conn = dataSource.getConnection()) {
-            snapshotConnection = DriverManager.getConnection(url);
+            snapshotConnection = snapshotDataSource.getConnection();
             DatabaseMetaData md = conn.getMetaData();
             if (md.getURL().startsWith("jdbc:oracle:")) {
                 schemaName = md.getUserName();
@@ -80,26 +131,420 @@ public class TableSnapshot {
 
     }
 
+    private static BasicDataSource createPool(String url) {
+        if (url.matches("jdbc:h2:mem:(;.*)?")) {
+            throw new IllegalArgumentException("A private in-memory database can't be shared between connections: " + url);
+        }
+        org.h2.Driver.load();
+        BasicDataSource pool = new BasicDataSource();
+        pool.setDriverClassName(org.h2.Driver.class.getName());
+        pool.setUrl(url);
+        pool.setMaxTotal(-1);
+        return pool;
+    }
+
+    /**
+     * Locks the tables in name order, so that callers locking several tables don't deadlock.
+     *
+     * @param exclusive true to lock for writing the versions, false for reading them
+     * @return the locks held
+     */
+    private List<Lock> lock(Collection<String> tableNames, boolean exclusive) {
+        List<Lock> held = new ArrayList<>();
+        for (String tableName : new TreeSet<>(tableNames)) {
+            ReentrantReadWriteLock tableLock = tableLocks.get(tableName);
+            if (tableLock == null) {
+                tableLock = new ReentrantReadWriteLock();
+                ReentrantReadWriteLock prev = tableLocks.putIfAbsent(tableName, tableLock);
+                if (prev != null) tableLock = prev;
+            }
+            Lock lock = exclusive ? tableLock.writeLock() : tableLock.readLock();
+            lock.lock();
+            held.add(lock);
+        }
+        return held;
+    }
+
+    private List<Lock> lock(String tableName, boolean exclusive) {
+        return lock(Collections.singleton(tableName), exclusive);
+    }
+
+    private static void unlock(List<Lock> held) {
+        for (Lock lock : held) {
+            lock.unlock();
+        }
+    }
+
     public void take(String tableName) {
         take(new String[]{tableName});
     }
 
     public void take(String[] tableNames) {
+        for (int i=0; i<tableNames.length; i++) {
+            tableNames[i] = normalizer.normalize(tableNames[i]);
+        }
+        List<Lock> held = lock(Arrays.asList(tableNames), true);
+        try (Connection conn = dataSource.getConnection()) {
+            loadMetadata(conn, tableNames);
+            final long version = getVersioning().getNextVersion(tableNames);
+            runOnWorkers(Arrays.asList(tableNames), conn,
+                    (connections, tableName) -> capture(connections.source(), connections.snapshot(), tableName, version));
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Takes the tables with their specs. The specs are kept for later snapshots and diffs of the tables.
+     *
+     * @param specs the specs of the tables
+     */
+    public void take(SnapshotSpec[] specs) {
+        String[] tableNames = new String[specs.length];
+        for (int i = 0; i < specs.length; i++) {
+            setSnapshotSpec(specs[i]);
+            tableNames[i] = specs[i].getTableName();
+        }
+        take(tableNames);
+    }
+
+    /**
+     * Sets which rows and columns of a table are captured.
+     *
+     * @param spec the spec of the table
+     */
+    public void setSnapshotSpec(SnapshotSpec spec) {
+        specs.put(normalizer.normalize(spec.getTableName()), spec);
+    }
+
+    /**
+     * Returns the tables which have probably changed since their current version,
+     * by comparing the probes of the source tables with the probes recorded with the versions.
+     * Tables without a recorded probe are returned as changed.
+     * Tables are probed concurrently by up to {@link #setParallelism(int) parallelism} workers.
+     *
+     * @param tableNames the names of the tables
+     * @return the normalized names of the changed tables, in the given order
+     * @see #setProbeColumns(int)
+     */
+    public List<String> findChangedTables(String[] tableNames) {
+        String[] normalized = new String[tableNames.length];
+        for (int i = 0; i < tableNames.length; i++) {
+            normalized[i] = normalizer.normalize(tableNames[i]);
+        }
+        final Set<String> changed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        List<Lock> held = lock(Arrays.asList(normalized), false);
+        try (Connection conn = dataSource.getConnection()) {
+            loadMetadata(conn, normalized);
+            runOnWorkers(Arrays.asList(normalized), conn, (connections, tableName) -> {
+                if (probeChanged(connections.source(), tableName)) changed.add(tableName);
+            });
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String tableName : normalized) {
+            if (changed.contains(tableName) && !result.contains(tableName)) {
+                result.add(tableName);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Takes only the tables which have probably changed since their current version.
+     * The unchanged tables get no new version, so only the returned tables should be diffed from their previous version.
+     *
+     * @param tableNames the names of the tables
+     * @return the normalized names of the tables taken
+     * @see #findChangedTables(String[])
+     */
+    public List<String> takeChanged(String[] tableNames) {
+        List<String> changed = findChangedTables(tableNames);
+        if (!changed.isEmpty()) {
+            take(changed.toArray(new String[changed.size()]));
+        }
+        return changed;
+    }
+
+    private boolean probeChanged(Connection conn, String tableName) throws SQLException {
+        Versioning versioning = getVersioning();
+        List<Long> versionIds = versioning.getVersionIds(tableName, 1);
+        TableProbe probe = versionIds.isEmpty() ? null : versioning.getProbe(tableName, versionIds.get(0));
+        if (probe == null) return true;
+        long started = System.nanoTime();
+        try {
+            return !prober(tableName).matches(conn, probe);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.PROBE, System.nanoTime() - started);
+        }
+    }
+
+    private TableProber prober(String tableName) {
+        SnapshotSpec spec = specs.get(tableName);
+        return new TableProber(tableName, columns(tableName), spec == null ? null : spec.getWhere(),
+                Math.max(probeColumns, 0), fetchSize);
+    }
+
+    /**
+     * Reads the column definitions of the tables which haven't been read yet.
+     * Tables are read concurrently by up to {@link #setParallelism(int) parallelism} workers,
+     * and are taken from the schema cache while their fingerprints are unchanged.
+     *
+     * @param tableNames the names of the tables
+     */
+    public void loadMetadata(String[] tableNames) {
+        String[] normalized = new String[tableNames.length];
+        for (int i = 0; i < tableNames.length; i++) {
+            normalized[i] = normalizer.normalize(tableNames[i]);
+        }
         try (Connection conn = dataSource.getConnection()) {
-            if (versioning == null) {
-                versioning = new Versioning(snapshotConnection);
+            loadMetadata(conn, normalized);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void loadMetadata(Connection conn, String[] tableNames) throws SQLException {
+        Set<String> missing = new LinkedHashSet<>();
+        for (String tableName : tableNames) {
+            if (!tableDefs.containsKey(tableName)) {
+                missing.add(tableName);
+            }
+        }
+        if (missing.isEmpty()) return;
+
+        long started = System.nanoTime();
+        final Map<String, Long> fingerprints = schemaCache == null ?
+                Collections.<String, Long>emptyMap()
+                : SchemaCache.fingerprints(conn.getMetaData(), schemaName, missing);
+        metrics.time(null, SnapshotMetrics.Phase.METADATA, System.nanoTime() - started);
+        List<String> unread = new ArrayList<>();
+        for (String tableName : missing) {
+            List<Column> columns = schemaCache == null ? null : schemaCache.get(tableName, fingerprints.get(tableName));
+            if (columns != null) {
+                tableDefs.put(tableName, columns);
+            } else {
+                unread.add(tableName);
+            }
+        }
+        runOnWorkers(unread, conn,
+                (connections, tableName) -> loadMetadata(connections.source().getMetaData(), tableName, fingerprints.get(tableName)));
+
+        if (schemaCache != null) {
+            try {
+                schemaCache.save();
+            } catch (IOException ex) {
+                throw new SQLException(ex);
+            }
+        }
+    }
+
+    private void loadMetadata(DatabaseMetaData md, String tableName, Long fingerprint) throws SQLException {
+        long started = System.nanoTime();
+        List<Column> columns = readMetadata(md, tableName);
+        metrics.time(tableName, SnapshotMetrics.Phase.METADATA, System.nanoTime() - started);
+        if (schemaCache != null) {
+            schemaCache.put(tableName, fingerprint, columns);
+        }
+    }
+
+    /**
+     * Runs the task on each table on up to {@link #setParallelism(int) parallelism} workers.
+     * The workers pull the tables from a shared queue and hold their own connections.
+     * A single worker runs on the calling thread and reuses the given source connection.
+     *
+     * @param conn the source connection of the calling thread, or null
+     */
+    private void runOnWorkers(Collection<String> tableNames, Connection conn, final TableTask task) throws SQLException {
+        final Queue<String> queue = new ConcurrentLinkedQueue<>(tableNames);
+        int workers = Math.min(parallelism, queue.size());
+        if (workers <= 1) {
+            runWorker(queue, conn, task);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(workers);
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(() -> {
+                    runWorker(queue, null, task);
+                    return null;
+                }));
+            }
+            await(futures, queue);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runWorker(Queue<String> queue, Connection conn, TableTask task) throws SQLException {
+        try (WorkerConnections connections = new WorkerConnections(conn)) {
+            String tableName;
+            while ((tableName = queue.poll()) != null) {
+                task.run(connections, tableName);
+            }
+        }
+    }
+
+    /**
+     * The work done on each table by {@link #runOnWorkers(Collection, Connection, TableTask)}.
+     */
+    private interface TableTask {
+        void run(WorkerConnections connections, String tableName) throws SQLException;
+    }
+
+    /**
+     * The connections of a worker, opened on first use and closed when the worker ends.
+     * A source connection given by the caller is left open.
+     */
+    private class WorkerConnections implements AutoCloseable {
+        private final boolean ownsSource;
+        private Connection source;
+        private Connection snapshot;
+
+        WorkerConnections(Connection source) {
+            this.source = source;
+            this.ownsSource = source == null;
+        }
+
+        Connection source() throws SQLException {
+            if (source == null) {
+                source = dataSource.getConnection();
             }
-            for (int i=0; i<tableNames.length; i++) {
-                tableNames[i] = normalizer.normalize(tableNames[i]);
+            return source;
+        }
+
+        Connection snapshot() throws SQLException {
+            if (snapshot == null) {
+                snapshot = snapshotDataSource.getConnection();
             }
-            long version = versioning.getNextVersion(tableNames);
-            for (String tableName : tableNames) {
-                createTable(conn, tableName, version);
-                copyData(conn, tableName);
+            return snapshot;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                if (snapshot != null) snapshot.close();
+            } finally {
+                if (ownsSource && source != null) source.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for the workers and rethrows the first failure, stopping the others from taking more tables.
+     */
+    private static void await(List<Future<Void>> futures, Queue<String> queue) {
+        IllegalStateException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    queue.clear();
+                    failure = new IllegalStateException(ex.getCause());
+                } else {
+                    failure.addSuppressed(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void capture(Connection conn, Connection snapshotConn, String tableName, long version) throws SQLException {
+        if (!tableDefs.containsKey(tableName)) {
+            readMetadata(conn.getMetaData(), tableName);
+        }
+        List<Column> columns = columns(tableName);
+        Versioning versioning = getVersioning();
+        if (probeColumns >= 0) {
+            long started = System.nanoTime();
+            TableProbe probe = prober(tableName).probe(conn);
+            metrics.time(tableName, SnapshotMetrics.Phase.PROBE, System.nanoTime() - started);
+            versioning.setProbe(tableName, version, probe);
+        }
+        if (snapshotStore != null) {
+            versioning.setChecksum(tableName, version, copyToStore(conn, tableName, version, columns));
+            return;
+        }
+        String versionTable = Versioning.versionedName(tableName, version);
+
+        if (captureMode != CaptureMode.FULL) {
+            IncrementalCapture incremental = new IncrementalCapture(snapshotConn, tableName, columns,
+                    sourceQuery(tableName, columns), batchPolicy(), metrics);
+            if (incremental.supports()) {
+                TriggerJournal journal = captureMode == CaptureMode.TRIGGER ? journal(conn, tableName) : null;
+                List<Long> versionIds = versioning.getVersionIds(tableName, 2);
+                TableChecksum checksum;
+                if (versionIds.size() == 2 && versionIds.get(1).equals(versioning.getStateVersion(tableName))
+                        && (journal == null || journal.isInstalled(conn))) {
+                    checksum = journal == null ?
+                            incremental.captureDelta(conn, versionTable)
+                            : incremental.captureJournal(conn, journal, versionTable,
+                                    versioning.getChecksum(tableName, versionIds.get(1)));
+                    versioning.setBaseVersion(tableName, version, versionIds.get(1));
+                } else {
+                    if (journal != null) {
+                        journal.install(conn);
+                    }
+                    createTable(snapshotConn, tableName, version, columns);
+                    checksum = incremental.captureBase(conn, versionTable);
+                }
+                versioning.setStateVersion(tableName, version);
+                versioning.setChecksum(tableName, version, checksum);
+                record(incremental.getStatistics());
+                return;
+            }
+        }
+
+        createTable(snapshotConn, tableName, version, columns);
+        versioning.setChecksum(tableName, version, copyData(conn, snapshotConn, tableName, versionTable));
+    }
+
+    /**
+     * Returns the trigger journal of the table, or null if the table can't be journaled.
+     */
+    private TriggerJournal journal(Connection conn, String tableName) throws SQLException {
+        SnapshotSpec spec = specs.get(tableName);
+        if (spec != null && spec.getWhere() != null) return null;
+        return TriggerJournal.forDatabase(conn.getMetaData(), tableName, tableDefs.get(tableName));
+    }
+
+    /**
+     * Removes the trigger and the journal table installed on the source table by {@link CaptureMode#TRIGGER}.
+     *
+     * @param tableName the name of the table
+     */
+    public void dropJournal(String tableName) {
+        tableName = normalizer.normalize(tableName);
+        List<Lock> held = lock(tableName, true);
+        try (Connection conn = dataSource.getConnection()) {
+            TriggerJournal journal = TriggerJournal.forDatabase(conn.getMetaData(), tableName, tableDefs.get(tableName));
+            if (journal != null) {
+                journal.uninstall(conn);
             }
         } catch (SQLException ex) {
             throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    synchronized Versioning getVersioning() throws SQLException {
+        if (versioning == null) {
+            versioning = new Versioning(snapshotConnection);
+            versioning.setMetrics(metrics);
         }
+        return versioning;
     }
 
     public List<String> listCandidate(String[] types) {
@@ -168,7 +613,6 @@ public class TableSnapshot {
                 column.setNullable(rs.getInt("NULLABLE") != 0);
                 columns.add(column);
             }
-            tableDefs.put(tableName, columns);
         }
 
         try (ResultSet rs = md.getPrimaryKeys(null, schemaName, tableName)) {
@@ -183,141 +627,745 @@ public class TableSnapshot {
             }
         }
 
+        tableDefs.put(tableName, columns);
         return columns;
     }
 
+    /**
+     * Returns the captured columns of the table.
+     */
+    List<Column> columns(String tableName) {
+        List<Column> columns = tableDefs.get(tableName);
+        SnapshotSpec spec = specs.get(tableName);
+        return spec == null || columns == null || !spec.isProjected() ? columns : spec.project(columns);
+    }
+
+    /**
+     * Returns the captured columns of the table, reading its definition first
+     * if this instance hasn't taken or diffed the table yet.
+     */
+    private List<Column> loadedColumns(String tableName) {
+        if (!tableDefs.containsKey(tableName)) {
+            loadMetadata(new String[]{tableName});
+        }
+        return columns(tableName);
+    }
+
+    /**
+     * Returns the query reading the captured rows and columns of the source table.
+     */
+    String sourceQuery(String tableName, List<Column> columns) {
+        SnapshotSpec spec = specs.get(tableName);
+        if (spec == null) {
+            return "SELECT * FROM " + tableName;
+        }
+        String sql = "SELECT " + (spec.isProjected() ? MergeJoinDiffer.columnList(columns) : "*") + " FROM " + tableName;
+        return spec.getWhere() == null ? sql : sql + " WHERE " + spec.getWhere();
+    }
+
     private void dropTable(String tableName, long version) throws SQLException {
-        try (Statement stmt = snapshotConnection.createStatement()) {
+        try (Connection snapshotConn = snapshotDataSource.getConnection();
+             Statement stmt = snapshotConn.createStatement()) {
             stmt.executeUpdate("DROP TABLE " + tableName);
         }
     }
     public void createTable(Connection conn, String tableName, long version) throws SQLException {
-        List<Column> columns = tableDefs.get(tableName);
-        if (columns == null) {
-            columns = readMetadata(conn.getMetaData(), tableName);
+        List<Lock> held = lock(tableName, true);
+        try (Connection snapshotConn = snapshotDataSource.getConnection()) {
+            if (!tableDefs.containsKey(tableName)) {
+                readMetadata(conn.getMetaData(), tableName);
+            }
+            createTable(snapshotConn, tableName, version, columns(tableName));
+        } finally {
+            unlock(held);
         }
+    }
 
-        try (Statement stmt = snapshotConnection.createStatement()) {
+    private void createTable(Connection snapshotConn, String tableName, long version, List<Column> columns) throws SQLException {
+        try (Statement stmt = snapshotConn.createStatement()) {
             StringBuilder sql = new StringBuilder();
             sql.append("CREATE TABLE ")
-                    .append(tableName)
-                    .append("_")
-                    .append(version)
+                    .append(Versioning.versionedName(tableName, version))
                     .append(" (");
             for (Column column : columns) {
                 sql.append("\n")
                         .append(column.getCreateSQL())
                         .append(",");
             }
+            sql.append("\n").append(RowHasher.HASH_COLUMN).append(" BIGINT NOT NULL,");
+            String pk = MergeJoinDiffer.primaryKeyList(columns);
+            if (!pk.isEmpty()) {
+                sql.append("\nPRIMARY KEY(").append(pk).append(")");
+            }
             sql.append(")");
             log.debug(sql.toString());
+            long started = System.nanoTime();
             stmt.executeUpdate(sql.toString());
+            metrics.time(tableName, SnapshotMetrics.Phase.CREATE, System.nanoTime() - started);
         }
     }
 
     public void copyData(Connection conn, String tableName) throws SQLException {
-        try (Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+        List<Lock> held = lock(tableName, true);
+        try (Connection snapshotConn = snapshotDataSource.getConnection()) {
+            Versioning versioning = getVersioning();
+            long version = versioning.getCurrentVersionId(tableName);
+            TableChecksum checksum = copyData(conn, snapshotConn, tableName, Versioning.versionedName(tableName, version));
+            versioning.setChecksum(tableName, version, checksum);
+        } finally {
+            unlock(held);
+        }
+    }
 
-            String sql = "INSERT INTO " + versioning.getCurrentVersion(tableName)
-                    + " VALUES(" + StringUtils.repeat("?", ",", rs.getMetaData().getColumnCount()) + ")";
+    /**
+     * Copies the source table into the version table, storing the content hash of each row.
+     *
+     * @return the checksum of the copied rows
+     */
+    private TableChecksum copyData(Connection conn, Connection snapshotConn, String tableName, String versionTable) throws SQLException {
+        List<Column> columns = columns(tableName);
+        final RowHasher hasher = new RowHasher(columns);
+        final TableChecksum checksum = new TableChecksum();
+        CopyStatistics statistics = new CopyStatistics(tableName, metrics);
+        long started = System.nanoTime();
+        boolean autoCommit = snapshotConn.getAutoCommit();
+        snapshotConn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            String sql = "INSERT INTO " + versionTable
+                    + " VALUES(" + StringUtils.repeat("?", ",", columns.size() + 1) + ")";
 
-            try (PreparedStatement snapshotStmt = snapshotConnection.prepareStatement(sql)) {
-                int batchCount = 1;
-                ResultSetMetaData rsMeta = rs.getMetaData();
-                while(rs.next()) {
-                    int i = 1;
-                    for(Column column : tableDefs.get(tableName)) {
-                        Object val;
-                        switch(rsMeta.getColumnType(i)) {
-                            case Types.TIMESTAMP:
-                            case Types.DATE:
-                                val = rs.getTimestamp(column.getName());
-                                break;
-                            case Types.CLOB:
-                            case Types.NCLOB:
-                                val = rs.getString(column.getName());
-                                break;
-                            default:
-                                val = rs.getObject(column.getName());
-                        }
-                        snapshotStmt.setObject(i++, val);
+            try (ResultSet rs = stmt.executeQuery(sourceQuery(tableName, columns));
+                 final PreparedStatement snapshotStmt = snapshotConn.prepareStatement(sql)) {
+                final BatchWriter writer = new BatchWriter(snapshotConn, snapshotStmt, batchPolicy(), statistics);
+                final SourceReader reader = new SourceReader(rs, columns);
+                new CopyPipeline(reader, pipelineBufferSize).copy(new CopyPipeline.RowHandler() {
+                    @Override
+                    public void handle(Object[] values) throws SQLException {
+                        reader.bind(snapshotStmt, values);
+                        long hash = hasher.hash(values);
+                        checksum.add(hash);
+                        snapshotStmt.setLong(values.length + 1, hash);
+                        writer.add(values);
                     }
-                    snapshotStmt.addBatch();
+                });
+                writer.finish();
+            }
+        } catch (SQLException ex) {
+            snapshotConn.rollback();
+            throw ex;
+        } finally {
+            snapshotConn.setAutoCommit(autoCommit);
+            statistics.addElapsedNanos(System.nanoTime() - started);
+            record(statistics);
+        }
+        return checksum;
+    }
 
-                    if (batchCount >= BULK_COUNT) {
-                        snapshotStmt.executeBatch();
+    /**
+     * Copies the source table into the snapshot store.
+     *
+     * @return the checksum of the copied rows
+     */
+    private TableChecksum copyToStore(Connection conn, String tableName, long version, List<Column> columns) throws SQLException {
+        final RowHasher hasher = new RowHasher(columns);
+        final CopyStatistics statistics = new CopyStatistics(tableName, metrics);
+        long started = System.nanoTime();
+        try (Statement stmt = conn.createStatement()) {
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            // Rows written in key order let the store merge-join the versions
+            String primaryKeys = MergeJoinDiffer.primaryKeyList(columns);
+            String sql = sourceQuery(tableName, columns) + (primaryKeys.isEmpty() ? "" : " ORDER BY " + primaryKeys);
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                final SnapshotStore.Writer writer = snapshotStore.createWriter(tableName, version, columns);
+                new CopyPipeline(new SourceReader(rs, columns), pipelineBufferSize).copy(new CopyPipeline.RowHandler() {
+                    @Override
+                    public void handle(Object[] values) throws SQLException {
+                        try {
+                            writer.write(values, hasher.hash(values));
+                        } catch (IOException ex) {
+                            throw new SQLException(ex);
+                        }
+                        statistics.addRow(BatchWriter.estimateBytes(values));
                     }
-                }
-                snapshotStmt.executeBatch();
+                });
+                return writer.finish();
             }
-            snapshotConnection.commit();
+        } catch (IOException ex) {
+            throw new SQLException(ex);
+        } finally {
+            statistics.addElapsedNanos(System.nanoTime() - started);
+            record(statistics);
         }
+    }
 
+    private void record(CopyStatistics statistics) {
+        copyStatistics.put(statistics.getTableName(), statistics);
+        metrics.time(statistics.getTableName(), SnapshotMetrics.Phase.COPY, statistics.getElapsedNanos());
+        metrics.rows(statistics.getTableName(), SnapshotMetrics.Phase.COPY, statistics.getRows(), statistics.getBytes());
     }
 
-    private Row findSameRow(List<Row> rows, Row targetRow) {
-        for(Row row : rows) {
-            if (row.same(targetRow))
-                return row;
-        }
-        return null;
+    BatchWriter.Policy batchPolicy() {
+        return new BatchWriter.Policy(batchSize, batchBytes, commitInterval);
+    }
+
+    /**
+     * Returns the metrics of the latest copy of the table.
+     *
+     * @param tableName the name of the table
+     * @return the metrics, or null if the table has not been copied
+     */
+    public CopyStatistics getCopyStatistics(String tableName) {
+        return copyStatistics.get(normalizer.normalize(tableName));
     }
 
     public Diff diffFromPrevious(String tableName) {
         tableName = normalizer.normalize(tableName);
-        try (Statement stmt = snapshotConnection.createStatement()) {
-            String addSql = "SELECT * FROM "  + versioning.getCurrentVersion(tableName) +
-                    " MINUS SELECT * FROM " + versioning.getPreviousVersion(tableName);
+        Diff diff = new Diff(loadedColumns(tableName));
+        diffFromPrevious(tableName, diff);
+        return diff;
+    }
+
+    /**
+     * Streams the differences between the current and the previous version of the table.
+     *
+     * @param tableName the name of the table
+     * @param listener  the listener receiving added, modified and deleted rows
+     */
+    public void diffFromPrevious(String tableName, DiffListener listener) {
+        tableName = normalizer.normalize(tableName);
+        try {
+            Versioning versioning = getVersioning();
+            diff(tableName, versioning.getPreviousVersionId(tableName), versioning.getCurrentVersionId(tableName), listener);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 
-            List<Column> columns = tableDefs.get(tableName);
-            Diff diff = new Diff(columns);
+    /**
+     * Writes the differences between the current and the previous version of the table
+     * to the stream as they are found. The stream is left open.
+     *
+     * @param tableName the name of the table
+     * @param format    the output format
+     * @param out       the stream
+     */
+    public void diffFromPrevious(String tableName, DiffFormat format, OutputStream out) {
+        tableName = normalizer.normalize(tableName);
+        try {
+            Versioning versioning = getVersioning();
+            diff(tableName, versioning.getPreviousVersionId(tableName), versioning.getCurrentVersionId(tableName), format, out);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
 
+    /**
+     * Takes each table on the async executor, as {@link #take(String[])} does.
+     *
+     * The tables are taken into one version, allocated when this is called, so that they can be
+     * diffed as a set like the tables of one {@link #take(String[])}. A table is added to the version
+     * when its snapshot starts, so a table taken by another call in the meantime fails.
+     * Each table has its own future, so a table failing doesn't abort the others.
+     * Cancelling a future prevents the table from being taken if it hasn't started yet.
+     *
+     * @param tableNames the names of the tables
+     * @return the futures of the tables, keyed by their normalized names in the given order
+     * @see #setAsyncExecutor(Executor)
+     */
+    public Map<String, CompletableFuture<Void>> takeAsync(String... tableNames) {
+        Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+        final long version;
+        try {
+            version = getVersioning().newVersion();
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+        Executor executor = asyncExecutor();
+        for (String name : tableNames) {
+            final String tableName = normalizer.normalize(name);
+            if (!futures.containsKey(tableName)) {
+                futures.put(tableName, CompletableFuture.runAsync(() -> take(tableName, version), executor));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Takes the table into a version allocated by {@link Versioning#newVersion()}.
+     */
+    private void take(String tableName, long version) {
+        List<Lock> held = lock(tableName, true);
+        try (WorkerConnections connections = new WorkerConnections(null)) {
+            loadMetadata(connections.source(), new String[]{tableName});
+            getVersioning().addTable(version, tableName);
+            capture(connections.source(), connections.snapshot(), tableName, version);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Compares the current and the previous version of the table on the async executor,
+     * as {@link #diffFromPrevious(String)} does.
+     *
+     * @param tableName the name of the table
+     * @return the future of the differences
+     */
+    public CompletableFuture<Diff> diffAsync(String tableName) {
+        return CompletableFuture.supplyAsync(() -> diffFromPrevious(tableName), asyncExecutor());
+    }
+
+    private synchronized Executor asyncExecutor() {
+        if (asyncExecutor == null) {
+            ownedAsyncExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "table-snapshot-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+            asyncExecutor = ownedAsyncExecutor;
+        }
+        return asyncExecutor;
+    }
+
+    public void diff(String tableName, long fromVersion, long toVersion, DiffFormat format, OutputStream out) {
+        tableName = normalizer.normalize(tableName);
+        List<Column> columns = loadedColumns(tableName);
+        DiffWriter writer = format == DiffFormat.CSV ?
+                new CsvDiffWriter(out, columns)
+                : new JsonDiffWriter(out, columns);
+        diff(tableName, fromVersion, toVersion, writer);
+        try {
+            writer.finish();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public Diff diff(String tableName, long fromVersion, long toVersion) {
+        tableName = normalizer.normalize(tableName);
+        Diff diff = new Diff(loadedColumns(tableName));
+        diff(tableName, fromVersion, toVersion, diff);
+        return diff;
+    }
+
+    /**
+     * Streams the differences between two versions of the table.
+     * Rows only in the {@code toVersion} are reported as added.
+     *
+     * @param tableName   the name of the table
+     * @param fromVersion the version compared from
+     * @param toVersion   the version compared to
+     * @param listener    the listener receiving added, modified and deleted rows
+     */
+    public void diff(String tableName, long fromVersion, long toVersion, DiffListener listener) {
+        tableName = normalizer.normalize(tableName);
+        List<Lock> held = lock(tableName, false);
+        try (Connection snapshotConn = snapshotDataSource.getConnection()) {
+            diff(snapshotConn, tableName, fromVersion, toVersion, listener);
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Diffs the tables between two versions on a bounded worker pool.
+     *
+     * @param tableNames  the names of the tables
+     * @param fromVersion the version compared from
+     * @param toVersion   the version compared to
+     * @return the differences keyed by the normalized table name, in the given order
+     */
+    public Map<String, Diff> diff(String[] tableNames, final long fromVersion, final long toVersion) {
+        final Map<String, Diff> diffs = new LinkedHashMap<>();
+        for (String tableName : tableNames) {
+            tableName = normalizer.normalize(tableName);
+            diffs.put(tableName, new Diff(loadedColumns(tableName)));
+        }
+        List<Lock> held = lock(diffs.keySet(), false);
+        try {
+            runOnWorkers(diffs.keySet(), null,
+                    (connections, tableName) -> diff(connections.snapshot(), tableName, fromVersion, toVersion, diffs.get(tableName)));
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+        return diffs;
+    }
+
+    private void diff(Connection snapshotConn, String tableName, long fromVersion, long toVersion, DiffListener listener) throws SQLException {
+        CountingListener counter = new CountingListener(listener);
+        long started = System.nanoTime();
+        try {
+            compare(snapshotConn, tableName, fromVersion, toVersion, counter);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.DIFF, System.nanoTime() - started);
+            metrics.rows(tableName, SnapshotMetrics.Phase.DIFF_ADD, counter.added, 0);
+            metrics.rows(tableName, SnapshotMetrics.Phase.DIFF_DELETE, counter.deleted, 0);
+            metrics.rows(tableName, SnapshotMetrics.Phase.DIFF_MODIFY, counter.modified, 0);
+        }
+    }
+
+    private void compare(Connection snapshotConn, String tableName, long fromVersion, long toVersion, DiffListener listener) throws SQLException {
+        Versioning versioning = getVersioning();
+        if (!versioning.hasVersion(tableName, fromVersion) || !versioning.hasVersion(tableName, toVersion)) {
+            throw new SQLException("No such version: "
+                    + Versioning.versionedName(tableName, versioning.hasVersion(tableName, fromVersion) ? toVersion : fromVersion));
+        }
+        if (fromVersion == toVersion) return;
+        if (fromVersion > toVersion) {
+            compare(snapshotConn, tableName, toVersion, fromVersion, new ReversedListener(listener));
+            return;
+        }
+        TableChecksum toChecksum = versioning.getChecksum(tableName, toVersion);
+        if (toChecksum != null && toChecksum.equals(versioning.getChecksum(tableName, fromVersion))) {
+            return;
+        }
+
+        List<Column> columns = loadedColumns(tableName);
+        if (snapshotStore != null) {
+            try {
+                snapshotStore.diff(tableName, fromVersion, toVersion, columns, comparisonPolicy, listener);
+            } catch (IOException ex) {
+                throw new SQLException(ex);
+            }
+            return;
+        }
+        List<String> deltaTables = deltaChain(tableName, fromVersion, toVersion);
+        if (deltaTables != null) {
+            IncrementalCapture.diff(snapshotConn, deltaTables, columns, comparisonPolicy, listener);
+            return;
+        }
+
+        String fromTable = fullImage(tableName, fromVersion);
+        String toTable   = fullImage(tableName, toVersion);
+        if (diffEngine == DiffEngine.EXTERNAL_SORT && MergeJoinDiffer.primaryKeyList(columns).isEmpty()) {
+            SnapshotSpec spec = specs.get(tableName);
+            List<String> logicalKey = spec == null ? Collections.<String>emptyList() : spec.getLogicalKey();
+            new ExternalSortDiffer(columns, logicalKey, sortBufferSize, comparisonPolicy).diff(snapshotConn, toTable, fromTable, listener);
+        } else if (diffEngine != DiffEngine.MINUS && MergeJoinDiffer.supports(columns)) {
+            if (diffShards > 1) {
+                new ShardedDiffer(snapshotDataSource, asyncExecutor(), columns, comparisonPolicy, diffShards).diff(snapshotConn, toTable, fromTable, listener);
+            } else {
+                new MergeJoinDiffer(columns, comparisonPolicy).diff(snapshotConn, toTable, fromTable, listener);
+            }
+        } else {
+            diffByMinus(snapshotConn, tableName, columns, toTable, fromTable, listener);
+        }
+    }
+
+    /**
+     * Returns the delta tables leading from one version to a later one, oldest first.
+     *
+     * @return the delta tables, or null if the later version isn't reachable by deltas
+     */
+    private List<String> deltaChain(String tableName, long fromVersion, long toVersion) throws SQLException {
+        Versioning versioning = getVersioning();
+        LinkedList<String> deltaTables = new LinkedList<>();
+        long version = toVersion;
+        while (version != fromVersion) {
+            Long baseVersion = versioning.getBaseVersion(tableName, version);
+            if (baseVersion == null || baseVersion < fromVersion) return null;
+            deltaTables.addFirst(Versioning.versionedName(tableName, version));
+            version = baseVersion;
+        }
+        return deltaTables;
+    }
+
+    /**
+     * Returns the table holding every row of the version.
+     * A delta version has one only while the state table still reflects it.
+     */
+    private String fullImage(String tableName, long version) throws SQLException {
+        Versioning versioning = getVersioning();
+        if (versioning.getBaseVersion(tableName, version) == null) {
+            return Versioning.versionedName(tableName, version);
+        }
+        if (Long.valueOf(version).equals(versioning.getStateVersion(tableName))) {
+            return IncrementalCapture.stateTable(tableName);
+        }
+        throw new SQLException("Can't restore the version: " + Versioning.versionedName(tableName, version));
+    }
+
+    /**
+     * Swaps the roles of the versions compared.
+     */
+    private static class ReversedListener implements DiffListener {
+        private final DiffListener listener;
+
+        ReversedListener(DiffListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void add(Row row) {
+            listener.delete(row);
+        }
+
+        @Override
+        public void modify(Row current, Row previous) {
+            listener.modify(previous, current);
+        }
+
+        @Override
+        public void delete(Row row) {
+            listener.add(row);
+        }
+    }
+
+    /**
+     * Counts the differences passed to the listener.
+     */
+    private static class CountingListener implements DiffListener {
+        private final DiffListener listener;
+        long added;
+        long modified;
+        long deleted;
+
+        CountingListener(DiffListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void add(Row row) {
+            added++;
+            listener.add(row);
+        }
+
+        @Override
+        public void modify(Row current, Row previous) {
+            modified++;
+            listener.modify(current, previous);
+        }
+
+        @Override
+        public void delete(Row row) {
+            deleted++;
+            listener.delete(row);
+        }
+    }
+
+    private void diffByMinus(Connection snapshotConn, String tableName, List<Column> columns, String currentTable, String previousTable, DiffListener listener) throws SQLException {
+        RowSchema schema = new RowSchema(columns, comparisonPolicy);
+        try (Statement stmt = snapshotConn.createStatement()) {
+            String columnList = MergeJoinDiffer.columnList(columns);
+            String addSql = "SELECT " + columnList + " FROM "  + currentTable +
+                    " MINUS SELECT " + columnList + " FROM " + previousTable;
+
+            Map<List<Object>, Row> added = new LinkedHashMap<>();
+            long started = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery(addSql)) {
                 while(rs.next()) {
-                    Row row = new Row(columns);
-                    for (Column column : columns) {
-                        row.add(rs.getString(column.getName()));
+                    Row row = schema.read(rs);
+                    List<Object> key = row.getPrimaryKey();
+                    if (key != null) {
+                        added.put(key, row);
+                    } else {
+                        listener.add(row);
                     }
-                    diff.add(row);
                 }
             }
 
-            String delSql = "SELECT * FROM "  + versioning.getPreviousVersion(tableName) +
-                    " MINUS SELECT * FROM " + versioning.getCurrentVersion(tableName);
+            metrics.time(tableName, SnapshotMetrics.Phase.DIFF_ADD, System.nanoTime() - started);
+
+            String delSql = "SELECT " + columnList + " FROM "  + previousTable +
+                    " MINUS SELECT " + columnList + " FROM " + currentTable;
+            long matchingNanos = 0;
+            started = System.nanoTime();
             try (ResultSet rs = stmt.executeQuery(delSql)) {
                 while(rs.next()) {
-                    Row row = new Row(columns);
-                    for (Column column : columns) {
-                        row.add(rs.getString(column.getName()));
-                    }
-                    Row addRow = findSameRow(diff.getAdd(), row);
+                    Row row = schema.read(rs);
+                    long matchStarted = System.nanoTime();
+                    List<Object> key = row.getPrimaryKey();
+                    Row addRow = key != null ? added.remove(key) : null;
+                    matchingNanos += System.nanoTime() - matchStarted;
                     if (addRow != null) {
-                        diff.modify(addRow, row);
+                        if (!addRow.sameValues(row)) {
+                            listener.modify(addRow, row);
+                        }
                     } else {
-                        diff.delete(row);
+                        listener.delete(row);
                     }
                 }
             }
-            return diff;
+            metrics.time(tableName, SnapshotMetrics.Phase.DIFF_DELETE, System.nanoTime() - started - matchingNanos);
+            metrics.time(tableName, SnapshotMetrics.Phase.DIFF_MODIFY, matchingNanos);
+
+            for (Row row : added.values()) {
+                listener.add(row);
+            }
+        }
+    }
 
+    /**
+     * Exports a version of the table to a {@link SnapshotFile}, in primary key order if the table has one.
+     * Versions kept in a snapshot store can't be exported.
+     *
+     * @param tableName the name of the table
+     * @param version   the version
+     * @param file      the file written
+     */
+    public void export(String tableName, long version, File file) {
+        tableName = normalizer.normalize(tableName);
+        if (snapshotStore != null) {
+            throw new IllegalStateException("Can't export a version from the snapshot store.");
+        }
+        List<Column> columns = loadedColumns(tableName);
+        // Rows written in key order let the exported files be merge-joined
+        String primaryKeys = MergeJoinDiffer.primaryKeyList(columns);
+        List<Lock> held = lock(tableName, false);
+        try (SnapshotFileWriter writer = new SnapshotFileWriter(file, tableName, version, columns);
+             Connection snapshotConn = snapshotDataSource.getConnection();
+             Statement stmt = snapshotConn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT " + MergeJoinDiffer.columnList(columns)
+                     + "," + RowHasher.HASH_COLUMN + " FROM " + fullImage(tableName, version)
+                     + (primaryKeys.isEmpty() ? "" : " ORDER BY " + primaryKeys))) {
+            Object[] values = new Object[columns.size()];
+            while (rs.next()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = rs.getObject(i + 1);
+                }
+                writer.write(values, rs.getLong(values.length + 1));
+            }
+            writer.finish();
+        } catch (SQLException | IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    public void export(String tableName, File file) {
+        try {
+            export(tableName, getVersioning().getCurrentVersionId(normalizer.normalize(tableName)), file);
         } catch (SQLException ex) {
             throw new IllegalStateException(ex);
         }
     }
 
+    /**
+     * Loads an exported version into the snapshot database as a new version of its table.
+     *
+     * @param file the file exported by {@link #export(String, long, File)}
+     * @return the new version
+     */
+    public long importVersion(File file) {
+        try (SnapshotFile snapshotFile = SnapshotFile.open(file)) {
+            return importVersion(snapshotFile);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private long importVersion(SnapshotFile snapshotFile) {
+        String tableName = normalizer.normalize(snapshotFile.getTableName());
+        List<Lock> held = lock(tableName, true);
+        try (Connection snapshotConn = snapshotDataSource.getConnection()) {
+            if (!tableDefs.containsKey(tableName)) {
+                tableDefs.put(tableName, snapshotFile.getColumns());
+            }
+            List<Column> columns = columns(tableName);
+            long version = getVersioning().getNextVersion(new String[]{tableName});
+            createTable(snapshotConn, tableName, version, columns);
+
+            final TableChecksum checksum = new TableChecksum();
+            CopyStatistics statistics = new CopyStatistics(tableName, metrics);
+            boolean autoCommit = snapshotConn.getAutoCommit();
+            snapshotConn.setAutoCommit(false);
+            try (final PreparedStatement stmt = snapshotConn.prepareStatement(
+                    "INSERT INTO " + Versioning.versionedName(tableName, version)
+                            + " VALUES(" + StringUtils.repeat("?", ",", columns.size() + 1) + ")")) {
+                final BatchWriter writer = new BatchWriter(snapshotConn, stmt, batchPolicy(), statistics);
+                snapshotFile.read(new SnapshotFile.RowHandler() {
+                    @Override
+                    public void handle(Value[] values, long hash) throws SQLException {
+                        Object[] objects = new Object[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            objects[i] = values[i].getObject();
+                            stmt.setObject(i + 1, objects[i]);
+                        }
+                        stmt.setLong(values.length + 1, hash);
+                        checksum.add(hash);
+                        writer.add(objects);
+                    }
+                });
+                writer.finish();
+            } catch (SQLException ex) {
+                snapshotConn.rollback();
+                throw ex;
+            } finally {
+                snapshotConn.setAutoCommit(autoCommit);
+            }
+            getVersioning().setChecksum(tableName, version, checksum);
+            return version;
+        } catch (SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /**
+     * Removes all but the latest versions of the table from the snapshot database.
+     *
+     * @param tableName the name of the table
+     * @param keep      the number of the latest versions to keep
+     * @return the removed version ids
+     */
+    public List<Long> prune(String tableName, int keep) {
+        tableName = normalizer.normalize(tableName);
+        List<Lock> held = lock(tableName, true);
+        try {
+            List<Long> removed = getVersioning().prune(tableName, keep);
+            if (snapshotStore != null) {
+                for (long version : removed) {
+                    snapshotStore.drop(tableName, version);
+                }
+            }
+            return removed;
+        } catch (SQLException | IOException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            unlock(held);
+        }
+    }
+
     public void clear() throws SQLException {
-        try (Statement stmt = snapshotConnection.createStatement()) {
+        List<Lock> held = lock(tableLocks.keySet(), true);
+        try (Connection snapshotConn = snapshotDataSource.getConnection();
+             Statement stmt = snapshotConn.createStatement()) {
             stmt.executeUpdate("DROP ALL OBJECTS");
+            synchronized (this) {
+                versioning = null;
+            }
+        } finally {
+            unlock(held);
         }
     }
 
     public void dispose() {
+        // Stop the async tasks before the connections and files they use are closed
+        setAsyncExecutor(null);
         try {
+            if (snapshotStore != null) {
+                snapshotStore.close();
+            }
             if (snapshotConnection != null && !snapshotConnection.isClosed()) {
                 snapshotConnection.close();
             }
-        } catch (SQLException e) {
+            if (ownedSnapshotDataSource != null) {
+                ownedSnapshotDataSource.close();
+            }
+        } catch (SQLException | IOException e) {
             throw new IllegalStateException(e);
         }
     }
@@ -326,9 +1374,220 @@ public class TableSnapshot {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Sets the number of tables copied concurrently by {@link #take(String[])}, and of tables
+     * whose metadata is read concurrently.
+     *
+     * @param parallelism the number of workers. 1 means sequential.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive.");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the executor running {@link #takeAsync(String...)}, {@link #diffAsync(String)}
+     * and the ranges of {@link #setDiffShards(int) sharded diffs}.
+     * By default, they run on a pool of as many daemon threads as there are processors,
+     * whatever the {@link #setParallelism(int) parallelism} of the synchronous calls is.
+     * The pool is shut down by {@link #dispose()}. An executor set here isn't shut down.
+     *
+     * @param asyncExecutor the executor, or null for the default pool
+     */
+    public synchronized void setAsyncExecutor(Executor asyncExecutor) {
+        if (ownedAsyncExecutor != null) {
+            ownedAsyncExecutor.shutdown();
+            ownedAsyncExecutor = null;
+        }
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Runs the async snapshots and diffs on a virtual thread per task.
+     * Virtual threads need Java 21 or later.
+     *
+     * @param virtualThreads true to use virtual threads, false for the default pool
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        ExecutorService executor = null;
+        if (virtualThreads) {
+            try {
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", ex);
+            }
+        }
+        setAsyncExecutor(executor);
+        ownedAsyncExecutor = executor;
+    }
+
+    /**
+     * Sets the maximum number of rows sent to the snapshot database in one JDBC batch.
+     *
+     * @param batchSize the number of rows
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive.");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum estimated size of one JDBC batch, so that batches of wide rows
+     * are executed before they reach the batch size.
+     *
+     * @param batchBytes the number of bytes, or 0 to limit batches by row count only
+     */
+    public void setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Sets the number of rows copied between commits.
+     *
+     * @param commitInterval the number of rows, or 0 to commit once per table
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Sets the fetch size of the queries reading the source tables.
+     *
+     * @param fetchSize the number of rows, or 0 for the driver default
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Enables the pipelined copy, where one thread fetches rows from the source
+     * while another inserts them into the snapshot.
+     *
+     * @param pipelineBufferSize the number of rows buffered between the threads,
+     *                           or 0 to fetch and insert on the same thread
+     */
+    public void setPipelineBufferSize(int pipelineBufferSize) {
+        this.pipelineBufferSize = pipelineBufferSize;
+    }
+
+    /**
+     * Sets the algorithm used by diffFromPrevious.
+     * Tables without a primary key are compared by {@link DiffEngine#MINUS},
+     * unless {@link DiffEngine#EXTERNAL_SORT} is set.
+     *
+     * @param diffEngine the diff engine
+     */
+    public void setDiffEngine(DiffEngine diffEngine) {
+        this.diffEngine = diffEngine;
+    }
+
+    /**
+     * Sets the number of primary key ranges a table is split into when it is merge-joined.
+     * The ranges are compared concurrently on their own connections, by the calling thread
+     * and by helpers on the {@link #setAsyncExecutor(Executor) async executor}.
+     * The differences are reported in the same order as without shards.
+     *
+     * @param diffShards the number of ranges, or 1 to compare a table in a single pass
+     */
+    public void setDiffShards(int diffShards) {
+        if (diffShards < 1) throw new IllegalArgumentException("diffShards must be positive.");
+        this.diffShards = diffShards;
+    }
+
+    /**
+     * Sets how the values of the rows are compared by the diffs of the versions in the snapshot database.
+     *
+     * @param comparisonPolicy the policy
+     */
+    public void setComparisonPolicy(ComparisonPolicy comparisonPolicy) {
+        this.comparisonPolicy = comparisonPolicy;
+    }
+
+    /**
+     * Sets the number of row hashes sorted in memory by {@link DiffEngine#EXTERNAL_SORT}.
+     * Longer versions are sorted in runs of this size spilled to temporary files.
+     *
+     * @param sortBufferSize the number of hashes
+     */
+    public void setSortBufferSize(int sortBufferSize) {
+        if (sortBufferSize < 1) throw new IllegalArgumentException("sortBufferSize must be positive.");
+        this.sortBufferSize = sortBufferSize;
+    }
+
+    /**
+     * Sets the storage of the snapshot rows.
+     * When it is set, versions are written to the store instead of H2 tables,
+     * and the capture mode is not used.
+     *
+     * @param snapshotStore the store, or null to keep the versions in the snapshot database
+     */
+    public void setSnapshotStore(SnapshotStore snapshotStore) {
+        this.snapshotStore = snapshotStore;
+    }
+
+    /**
+     * Sets how the following snapshots are stored.
+     *
+     * @param captureMode the capture mode
+     */
+    public void setCaptureMode(CaptureMode captureMode) {
+        this.captureMode = captureMode;
+    }
+
+    /**
+     * Records a probe of each source table with the versions taken, so that
+     * {@link #findChangedTables(String[])} can tell the tables changed since without copying them.
+     * The probe is read before the table is copied, and costs a scan of the primary key
+     * and the sampled columns.
+     *
+     * @param probeColumns the number of non-key columns sampled into the probe,
+     *                     or -1 to record no probes, which is the default
+     */
+    public void setProbeColumns(int probeColumns) {
+        this.probeColumns = probeColumns;
+    }
+
+    /**
+     * Sets the metrics receiving the timings and counts of snapshots and diffs.
+     *
+     * @param metrics the metrics, or null to discard them
+     */
+    public void setMetrics(SnapshotMetrics metrics) {
+        this.metrics = metrics == null ? SnapshotMetrics.NONE : metrics;
+        if (versioning != null) {
+            versioning.setMetrics(this.metrics);
+        }
+    }
+
+    /**
+     * Keeps the column definitions read from the source database in the file,
+     * so that later instances don't read them again while the tables are unchanged.
+     *
+     * @param cacheFile the file, or null to read the definitions every time
+     */
+    public void setSchemaCache(File cacheFile) {
+        try {
+            schemaCache = cacheFile == null ? null : new SchemaCache(cacheFile);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Adds the column definitions in the JSON file to the definitions already read.
+     *
+     * @param cacheFile the file
+     * @deprecated The definitions aren't checked against the source tables, so they are used
+     *             even after a table has changed. Use {@link #setSchemaCache(File)} instead.
+     */
+    @Deprecated
     public void loadTableDefs(File cacheFile) throws IOException {
+        Map<String, List<Column>> defs;
         try (FileInputStream fis = new FileInputStream(cacheFile)) {
-            tableDefs = JSON.decode(fis);
+            defs = JSON.decode(fis);
         }
+        // Keep the case-insensitive and synchronized map shared with the workers
+        tableDefs.putAll(defs);
     }
 }
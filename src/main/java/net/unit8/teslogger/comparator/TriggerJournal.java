@@ -0,0 +1,218 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+
+import java.sql.*;
+import java.util.List;
+
+/**
+ * A journal table on the source database, filled by a trigger with the images of the changed rows.
+ *
+ * The journal has the columns of the table, followed by the operation and a sequence number.
+ * Inserted and updated rows are journaled with their new image, and deleted rows with their old one.
+ * An update changing the primary key is journaled as a delete and an insert.
+ * The rows are removed from the journal once a snapshot has read them.
+ *
+ * @author kawasima
+ */
+abstract class TriggerJournal {
+    static final String SEQ_COLUMN = "SNAPSHOT_SEQ";
+
+    protected final String tableName;
+    protected final List<Column> columns;
+
+    TriggerJournal(String tableName, List<Column> columns) {
+        this.tableName = tableName;
+        this.columns = columns;
+    }
+
+    /**
+     * Returns the journal for the dialect of the source database.
+     *
+     * @param columns all the columns of the table
+     * @return the journal, or null if the database isn't supported
+     */
+    static TriggerJournal forDatabase(DatabaseMetaData md, String tableName, List<Column> columns) throws SQLException {
+        String url = md.getURL();
+        if (url.startsWith("jdbc:h2:")) {
+            return new H2Journal(tableName, columns);
+        } else if (url.startsWith("jdbc:oracle:")) {
+            return new OracleJournal(tableName, columns);
+        }
+        return null;
+    }
+
+    static String journalTable(String tableName) {
+        return tableName + "$JN";
+    }
+
+    static String triggerName(String tableName) {
+        return tableName + "$JT";
+    }
+
+    boolean isInstalled(Connection conn) throws SQLException {
+        try (ResultSet rs = conn.getMetaData().getTables(null, null, journalTable(tableName), null)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Creates an empty journal and the trigger, replacing the existing ones.
+     */
+    void install(Connection conn) throws SQLException {
+        uninstall(conn);
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : installSql()) {
+                stmt.executeUpdate(sql);
+            }
+        }
+        commit(conn);
+    }
+
+    void uninstall(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            for (String sql : uninstallSql()) {
+                try {
+                    stmt.executeUpdate(sql);
+                } catch (SQLException ignore) {
+                    // Not installed
+                }
+            }
+        }
+        commit(conn);
+    }
+
+    /**
+     * Returns the query reading the journal in the order of the changes.
+     */
+    String readSql() {
+        return "SELECT * FROM " + journalTable(tableName) + " ORDER BY " + SEQ_COLUMN;
+    }
+
+    /**
+     * Removes the journaled rows which have been read.
+     * Rows journaled by transactions committed after the journal was read are kept.
+     */
+    void purge(Connection conn, List<Long> sequences) throws SQLException {
+        if (sequences.isEmpty()) return;
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "DELETE FROM " + journalTable(tableName) + " WHERE " + SEQ_COLUMN + " = ?")) {
+            for (long sequence : sequences) {
+                stmt.setLong(1, sequence);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        commit(conn);
+    }
+
+    private static void commit(Connection conn) throws SQLException {
+        if (!conn.getAutoCommit()) {
+            conn.commit();
+        }
+    }
+
+    protected String createJournalSql() {
+        return "CREATE TABLE " + journalTable(tableName) + " AS SELECT * FROM " + tableName + " WHERE 1=0";
+    }
+
+    abstract String[] installSql();
+
+    abstract String[] uninstallSql();
+
+    /**
+     * Journals the changes by {@link JournalTrigger}, which must be on the classpath of the database.
+     */
+    static class H2Journal extends TriggerJournal {
+        H2Journal(String tableName, List<Column> columns) {
+            super(tableName, columns);
+        }
+
+        @Override
+        String[] installSql() {
+            return new String[]{
+                    createJournalSql(),
+                    "ALTER TABLE " + journalTable(tableName) + " ADD COLUMN " + IncrementalCapture.OP_COLUMN + " CHAR(1)",
+                    "ALTER TABLE " + journalTable(tableName) + " ADD COLUMN " + SEQ_COLUMN + " BIGINT AUTO_INCREMENT",
+                    "CREATE TRIGGER " + triggerName(tableName) + " AFTER INSERT, UPDATE, DELETE ON " + tableName
+                            + " FOR EACH ROW CALL \"" + JournalTrigger.class.getName() + "\""
+            };
+        }
+
+        @Override
+        String[] uninstallSql() {
+            return new String[]{
+                    "DROP TRIGGER IF EXISTS " + triggerName(tableName),
+                    "DROP TABLE IF EXISTS " + journalTable(tableName)
+            };
+        }
+    }
+
+    /**
+     * Journals the changes by a PL/SQL row trigger, numbered by a sequence.
+     */
+    static class OracleJournal extends TriggerJournal {
+        OracleJournal(String tableName, List<Column> columns) {
+            super(tableName, columns);
+        }
+
+        private String sequenceName() {
+            return tableName + "$JS";
+        }
+
+        @Override
+        String[] installSql() {
+            return new String[]{
+                    createJournalSql(),
+                    "ALTER TABLE " + journalTable(tableName) + " ADD (" + IncrementalCapture.OP_COLUMN
+                            + " CHAR(1), " + SEQ_COLUMN + " NUMBER(19))",
+                    "CREATE SEQUENCE " + sequenceName(),
+                    triggerSql()
+            };
+        }
+
+        private String triggerSql() {
+            StringBuilder keyChanged = new StringBuilder();
+            for (Column column : columns) {
+                if (column.isPrimaryKey()) {
+                    if (keyChanged.length() > 0) keyChanged.append(" OR ");
+                    keyChanged.append(":OLD.").append(column.getName())
+                            .append(" <> :NEW.").append(column.getName());
+                }
+            }
+            return "CREATE OR REPLACE TRIGGER " + triggerName(tableName)
+                    + " AFTER INSERT OR UPDATE OR DELETE ON " + tableName + " FOR EACH ROW\n"
+                    + "BEGIN\n"
+                    + "  IF DELETING OR (UPDATING AND (" + keyChanged + ")) THEN\n"
+                    + "    " + insertSql(":OLD.", "D") + ";\n"
+                    + "  END IF;\n"
+                    + "  IF INSERTING OR (UPDATING AND (" + keyChanged + ")) THEN\n"
+                    + "    " + insertSql(":NEW.", "I") + ";\n"
+                    + "  ELSIF UPDATING THEN\n"
+                    + "    " + insertSql(":NEW.", "U") + ";\n"
+                    + "  END IF;\n"
+                    + "END;";
+        }
+
+        private String insertSql(String image, String op) {
+            StringBuilder names = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (Column column : columns) {
+                names.append(column.getName()).append(",");
+                values.append(image).append(column.getName()).append(",");
+            }
+            return "INSERT INTO " + journalTable(tableName)
+                    + "(" + names + IncrementalCapture.OP_COLUMN + "," + SEQ_COLUMN + ")"
+                    + " VALUES(" + values + "'" + op + "'," + sequenceName() + ".NEXTVAL)";
+        }
+
+        @Override
+        String[] uninstallSql() {
+            return new String[]{
+                    "DROP TRIGGER " + triggerName(tableName),
+                    "DROP TABLE " + journalTable(tableName) + " PURGE",
+                    "DROP SEQUENCE " + sequenceName()
+            };
+        }
+    }
+}
@@ -5,20 +5,33 @@ import org.h2.util.IOUtils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.*;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Records the versions of snapshot tables.
+ *
+ * The version records are loaded into a per-table index once and kept up to date
+ * by this instance, so lookups don't query the snapshot database.
+ * An instance may be shared between threads. Its updates are serialized on the connection.
+ *
  * @author kawasima
  */
 public class Versioning {
     private Connection conn;
+    private final ConcurrentHashMap<String, TableVersions> index = new ConcurrentHashMap<>();
+    private SnapshotMetrics metrics = SnapshotMetrics.NONE;
 
     public Versioning(Connection conn) throws SQLException {
         this.conn = conn;
         Statement stmt = null;
         try {
             stmt = conn.createStatement();
-            String sqls = getCreateTableSql();
-            for (String sql : sqls.split("\\s;\\s")) {
+            for (String sql : statements(getCreateTableSql())) {
                 stmt.execute(sql);
             }
             conn.commit();
@@ -26,71 +39,415 @@ public class Versioning {
             if (stmt != null)
                 stmt.close();
         }
+        loadIndex();
+    }
 
+    private void loadIndex() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT version_id, table_name, base_version, row_count, checksum,"
+                            + " probe_row_count, probe_max_key, probe_hash FROM version_tables "
+                            + "ORDER BY version_id")) {
+                while (rs.next()) {
+                    VersionEntry entry = new VersionEntry(rs.getLong("VERSION_ID"));
+                    long baseVersion = rs.getLong("BASE_VERSION");
+                    if (!rs.wasNull()) {
+                        entry.baseVersion = baseVersion;
+                    }
+                    long rowCount = rs.getLong("ROW_COUNT");
+                    if (!rs.wasNull()) {
+                        entry.checksum = new TableChecksum(rowCount, rs.getLong("CHECKSUM"));
+                    }
+                    long probeRowCount = rs.getLong("PROBE_ROW_COUNT");
+                    if (!rs.wasNull()) {
+                        entry.probe = new TableProbe(probeRowCount, rs.getString("PROBE_MAX_KEY"), rs.getLong("PROBE_HASH"));
+                    }
+                    versions(rs.getString("TABLE_NAME")).entries.add(entry);
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT table_name, version_id FROM table_states")) {
+                while (rs.next()) {
+                    versions(rs.getString("TABLE_NAME")).stateVersion = rs.getLong("VERSION_ID");
+                }
+            }
+        }
+    }
+
+    private TableVersions versions(String tableName) {
+        TableVersions versions = index.get(tableName);
+        if (versions == null) {
+            versions = new TableVersions();
+            TableVersions prev = index.putIfAbsent(tableName, versions);
+            if (prev != null) versions = prev;
+        }
+        return versions;
+    }
+
+    private VersionEntry entry(String tableName, long version) throws SQLException {
+        TableVersions versions = versions(tableName);
+        synchronized (versions) {
+            int i = versions.indexOf(version);
+            if (i < 0) {
+                throw new SQLException("No such version: " + versionedName(tableName, version));
+            }
+            return versions.entries.get(i);
+        }
     }
 
     public String getPreviousVersion(String tableName) {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "SELECT version_id, table_name FROM version_tables "
-                        + "WHERE table_name = ? "
-                        + "ORDER BY version_id DESC")) {
-            stmt.setString(1, tableName);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next() && rs.next()) {
-                return tableName + "_" + rs.getLong("VERSION_ID");
-            } else {
-                throw new SQLException("No previous version.");
+        return versionedName(tableName, getPreviousVersionId(tableName));
+    }
+
+    public String getCurrentVersion(String tableName) {
+        return versionedName(tableName, getCurrentVersionId(tableName));
+    }
+
+    public long getPreviousVersionId(String tableName) {
+        List<Long> versionIds = getVersionIds(tableName, 2);
+        if (versionIds.size() < 2) {
+            throw new IllegalStateException(new SQLException("No previous version."));
+        }
+        return versionIds.get(1);
+    }
+
+    public long getCurrentVersionId(String tableName) {
+        List<Long> versionIds = getVersionIds(tableName, 1);
+        if (versionIds.isEmpty()) {
+            throw new IllegalStateException(new SQLException("No current version."));
+        }
+        return versionIds.get(0);
+    }
+
+    /**
+     * Returns the latest version ids of the table, newest first.
+     *
+     * @param tableName the name of the table
+     * @param limit     the maximum number of ids
+     * @return the version ids
+     */
+    public List<Long> getVersionIds(String tableName, int limit) {
+        TableVersions versions = versions(tableName);
+        synchronized (versions) {
+            List<Long> versionIds = new ArrayList<>(limit);
+            for (int i = versions.entries.size() - 1; i >= 0 && versionIds.size() < limit; i--) {
+                versionIds.add(versions.entries.get(i).id);
             }
+            return versionIds;
+        }
+    }
 
+    /**
+     * Returns the version ids of the table from one version to another, oldest first.
+     *
+     * @param tableName   the name of the table
+     * @param fromVersion the first version, inclusive
+     * @param toVersion   the last version, inclusive
+     * @return the version ids
+     */
+    public List<Long> getVersionIdsBetween(String tableName, long fromVersion, long toVersion) {
+        TableVersions versions = versions(tableName);
+        synchronized (versions) {
+            int from = versions.indexOf(fromVersion);
+            int to = versions.indexOf(toVersion);
+            if (from < 0 || to < 0) {
+                throw new IllegalStateException(new SQLException("No such version: "
+                        + versionedName(tableName, from < 0 ? fromVersion : toVersion)));
+            }
+            List<Long> versionIds = new ArrayList<>(Math.abs(to - from) + 1);
+            for (int i = Math.min(from, to); i <= Math.max(from, to); i++) {
+                versionIds.add(versions.entries.get(i).id);
+            }
+            return versionIds;
+        }
+    }
+
+    public boolean hasVersion(String tableName, long version) {
+        TableVersions versions = versions(tableName);
+        synchronized (versions) {
+            return versions.indexOf(version) >= 0;
+        }
+    }
+
+    /**
+     * Returns the version which the given version of the table is a delta against.
+     *
+     * @return the base version, or null if the version is a full copy
+     */
+    public Long getBaseVersion(String tableName, long version) {
+        try {
+            return entry(tableName, version).baseVersion;
         } catch(SQLException ex) {
             throw new IllegalStateException(ex);
         }
     }
 
-    public String getCurrentVersion(String tableName) {
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "SELECT version_id, table_name FROM version_tables "
-                        + "WHERE table_name = ? "
-                        + "ORDER BY version_id DESC")) {
-            stmt.setString(1, tableName);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return tableName + "_" + rs.getLong("VERSION_ID");
-            } else {
-                throw new SQLException("No current version.");
-            }
+    public void setBaseVersion(String tableName, long version, long baseVersion) {
+        long started = System.nanoTime();
+        try {
+            update("UPDATE version_tables SET base_version = ? WHERE version_id = ? AND table_name = ?",
+                    baseVersion, version, tableName);
+            entry(tableName, version).baseVersion = baseVersion;
         } catch(SQLException ex) {
             throw new IllegalStateException(ex);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Returns the checksum of the rows of the given version of the table.
+     *
+     * @return the checksum, or null if it was not recorded
+     */
+    public TableChecksum getChecksum(String tableName, long version) {
+        try {
+            return entry(tableName, version).checksum;
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void setChecksum(String tableName, long version, TableChecksum checksum) {
+        long started = System.nanoTime();
+        try {
+            update("UPDATE version_tables SET row_count = ?, checksum = ? WHERE version_id = ? AND table_name = ?",
+                    checksum.getRowCount(), checksum.getChecksum(), version, tableName);
+            entry(tableName, version).checksum = new TableChecksum(checksum.getRowCount(), checksum.getChecksum());
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Returns the probe of the source table recorded when the given version was taken.
+     *
+     * @return the probe, or null if it was not recorded
+     */
+    public TableProbe getProbe(String tableName, long version) {
+        try {
+            return entry(tableName, version).probe;
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public void setProbe(String tableName, long version, TableProbe probe) {
+        long started = System.nanoTime();
+        try {
+            update("UPDATE version_tables SET probe_row_count = ?, probe_max_key = ?, probe_hash = ?"
+                            + " WHERE version_id = ? AND table_name = ?",
+                    probe.getRowCount(), probe.getMaxKey(), probe.getHash(), version, tableName);
+            entry(tableName, version).probe = probe;
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Returns the version reflected by the latest-state table of an incremental snapshot.
+     *
+     * @return the version, or null if the table has no state
+     */
+    public Long getStateVersion(String tableName) {
+        return versions(tableName).stateVersion;
+    }
+
+    public void setStateVersion(String tableName, long version) {
+        long started = System.nanoTime();
+        try {
+            update("MERGE INTO table_states KEY(table_name) VALUES(?,?)", tableName, version);
+            versions(tableName).stateVersion = version;
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
         }
     }
 
     public long getNextVersion(String[] tableNames) {
         Long version = null;
+        long started = System.nanoTime();
+
+        synchronized (conn) {
+            try {
+                version = insertVersion();
+            } catch(SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
 
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO version_tables(version_id, table_name) VALUES(?,?)")) {
+                for (String tableName : tableNames) {
+                    stmt.setLong(1, version);
+                    stmt.setString(2, tableName);
+                    stmt.executeUpdate();
+                }
+                conn.commit();
+            }  catch(SQLException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        for (String tableName : tableNames) {
+            TableVersions versions = versions(tableName);
+            synchronized (versions) {
+                versions.entries.add(new VersionEntry(version));
+            }
+        }
+        metrics.time(null, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        return version;
+    }
+
+    /**
+     * Allocates a version without tables. The tables are added to it one by one by {@link #addTable(long, String)},
+     * so that tables taken separately share the version.
+     *
+     * @return the version id
+     */
+    public long newVersion() {
+        long started = System.nanoTime();
+        synchronized (conn) {
+            try {
+                long version = insertVersion();
+                conn.commit();
+                return version;
+            } catch(SQLException ex) {
+                throw new IllegalStateException(ex);
+            } finally {
+                metrics.time(null, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+            }
+        }
+    }
+
+    /**
+     * Adds the table to a version allocated by {@link #newVersion()}.
+     *
+     * @throws IllegalStateException if the table already has this or a later version
+     */
+    public void addTable(long version, String tableName) {
+        TableVersions versions = versions(tableName);
+        long started = System.nanoTime();
+        try {
+            synchronized (versions) {
+                if (!versions.entries.isEmpty() && versions.entries.get(versions.entries.size() - 1).id >= version) {
+                    throw new IllegalStateException(tableName + " has been taken by a version later than " + version + ".");
+                }
+                update("INSERT INTO version_tables(version_id, table_name) VALUES(?,?)", version, tableName);
+                versions.entries.add(new VersionEntry(version));
+            }
+        } catch(SQLException ex) {
+            throw new IllegalStateException(ex);
+        } finally {
+            metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        }
+    }
+
+    private long insertVersion() throws SQLException {
         try (PreparedStatement stmt = conn.prepareStatement(
                 "INSERT INTO versions VALUES() ",
                 Statement.RETURN_GENERATED_KEYS)) {
             stmt.executeUpdate();
             try (ResultSet rs = stmt.getGeneratedKeys()) {
                 rs.next();
-                version = rs.getLong(1);
+                return rs.getLong(1);
             }
-        } catch(SQLException ex) {
-            throw new IllegalStateException(ex);
         }
+    }
 
-        try (PreparedStatement stmt = conn.prepareStatement(
-                "INSERT INTO version_tables VALUES(?,?)")) {
-            for (String tableName : tableNames) {
-                stmt.setLong(1, version);
-                stmt.setString(2, tableName);
+    /**
+     * Removes all but the latest versions of the table and drops their snapshot tables.
+     *
+     * The latest-state table of an incremental snapshot is kept.
+     *
+     * @param tableName the name of the table
+     * @param keep      the number of the latest versions to keep
+     * @return the removed version ids
+     */
+    public List<Long> prune(String tableName, int keep) {
+        if (keep < 1) throw new IllegalArgumentException("keep must be positive.");
+        TableVersions versions = versions(tableName);
+        List<Long> removed = new ArrayList<>();
+        long started = System.nanoTime();
+        synchronized (versions) {
+            int count = versions.entries.size() - keep;
+            if (count <= 0) return removed;
+
+            synchronized (conn) {
+                try (Statement stmt = conn.createStatement();
+                     PreparedStatement delete = conn.prepareStatement(
+                             "DELETE FROM version_tables WHERE version_id = ? AND table_name = ?")) {
+                    for (VersionEntry entry : versions.entries.subList(0, count)) {
+                        stmt.executeUpdate("DROP TABLE IF EXISTS " + versionedName(tableName, entry.id));
+                        delete.setLong(1, entry.id);
+                        delete.setString(2, tableName);
+                        delete.executeUpdate();
+                        removed.add(entry.id);
+                    }
+                    stmt.executeUpdate("DELETE FROM versions WHERE id NOT IN (SELECT version_id FROM version_tables)");
+                    conn.commit();
+                } catch(SQLException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            versions.entries.subList(0, count).clear();
+        }
+        metrics.time(tableName, SnapshotMetrics.Phase.VERSIONING, System.nanoTime() - started);
+        return removed;
+    }
+
+    /**
+     * Removes all but the latest versions of every table.
+     *
+     * @param keep the number of the latest versions to keep
+     */
+    public void prune(int keep) {
+        for (String tableName : new ArrayList<>(index.keySet())) {
+            prune(tableName, keep);
+        }
+    }
+
+    /**
+     * Executes an update and commits it.
+     * Updates from different threads are serialized, as they share the connection.
+     */
+    private void update(String sql, Object... params) throws SQLException {
+        synchronized (conn) {
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < params.length; i++) {
+                    stmt.setObject(i + 1, params[i]);
+                }
                 stmt.executeUpdate();
+                conn.commit();
+            }
+        }
+    }
+
+    /**
+     * Sets the metrics receiving the time spent updating the version records.
+     */
+    public void setMetrics(SnapshotMetrics metrics) {
+        this.metrics = metrics == null ? SnapshotMetrics.NONE : metrics;
+    }
+
+    public static String versionedName(String tableName, long version) {
+        return tableName + "_" + version;
+    }
+
+    /**
+     * Splits a script into its statements, each ending with a semicolon at the end of a line.
+     */
+    static List<String> statements(String script) {
+        List<String> statements = new ArrayList<>();
+        for (String sql : script.split(";[ \\t]*(\\r?\\n|$)")) {
+            if (!sql.trim().isEmpty()) {
+                statements.add(sql.trim());
             }
-            conn.commit();
-            return version;
-        }  catch(SQLException ex) {
-            throw new IllegalStateException(ex);
         }
+        return statements;
     }
 
     private String getCreateTableSql() {
@@ -103,4 +460,46 @@ public class Versioning {
             throw new IllegalStateException("Can't read versions.sql.");
         }
     }
+
+    /**
+     * The versions of a table, oldest first.
+     */
+    private static class TableVersions {
+        final List<VersionEntry> entries = new ArrayList<>();
+        volatile Long stateVersion;
+
+        int indexOf(long version) {
+            int i = Collections.binarySearch(new IdList(entries), version);
+            return i >= 0 ? i : -1;
+        }
+    }
+
+    private static class VersionEntry {
+        final long id;
+        volatile Long baseVersion;
+        volatile TableChecksum checksum;
+        volatile TableProbe probe;
+
+        VersionEntry(long id) {
+            this.id = id;
+        }
+    }
+
+    private static class IdList extends AbstractList<Long> implements RandomAccess {
+        private final List<VersionEntry> entries;
+
+        IdList(List<VersionEntry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Long get(int i) {
+            return entries.get(i).id;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+    }
 }
@@ -8,4 +8,17 @@ CREATE TABLE IF NOT EXISTS version_tables (
    version_id bigint not null,
    table_name varchar(255) not null,
    PRIMARY KEY(version_id, table_name)
-)
\ No newline at end of file
+);
+
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS base_version bigint;
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS row_count bigint;
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS checksum bigint;
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS probe_row_count bigint;
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS probe_max_key varchar(4000);
+ALTER TABLE version_tables ADD COLUMN IF NOT EXISTS probe_hash bigint;
+
+CREATE TABLE IF NOT EXISTS table_states (
+   table_name varchar(255) not null,
+   version_id bigint not null,
+   PRIMARY KEY(table_name)
+)
@@ -0,0 +1,110 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class ColumnarSnapshotStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Column> columns;
+    private RowHasher hasher;
+    private ColumnarSnapshotStore store;
+
+    @Before
+    public void setUp() {
+        Column id = new Column("ID", Value.LONG);
+        id.setPrimaryKey(true);
+        columns = Arrays.asList(id, new Column("NAME", Value.STRING));
+        hasher = new RowHasher(columns);
+        store = new ColumnarSnapshotStore(folder.getRoot());
+    }
+
+    private void write(long version, List<Object[]> rows) throws Exception {
+        SnapshotStore.Writer writer = store.createWriter("EMP", version, columns);
+        for (Object[] row : rows) {
+            writer.write(row, hasher.hash(row));
+        }
+        assertEquals(rows.size(), writer.finish().getRowCount());
+    }
+
+    private List<Object[]> rows(int from, int to, int changed) {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            rows.add(new Object[]{(long) i, i == changed ? "changed" : "emp" + (i % 3)});
+        }
+        return rows;
+    }
+
+    @Test
+    public void mergeJoinsKeysByTheirType() throws Exception {
+        // The keys 10 to 12 sort before 2 as text
+        write(1, rows(1, 11, 0));
+        write(2, rows(2, 12, 10));
+        Diff diff = new Diff(columns);
+        store.diff("EMP", 1, 2, columns, new ComparisonPolicy(), diff);
+        assertEquals(1, diff.getAdd().size());
+        assertEquals("12", diff.getAdd().get(0).get(0));
+        assertEquals(1, diff.getDelete().size());
+        assertEquals("1", diff.getDelete().get(0).get(0));
+        assertEquals(1, diff.getModify().size());
+        assertEquals("10", diff.getModify().get(0).get(0));
+    }
+
+    @Test
+    public void rowsOutOfKeyOrderAreMatchedByHash() throws Exception {
+        store.setSortBufferSize(2);
+        write(1, rows(1, 11, 0));
+        List<Object[]> reversed = rows(2, 12, 10);
+        Collections.reverse(reversed);
+        write(2, reversed);
+        Diff diff = new Diff(columns);
+        store.diff("EMP", 1, 2, columns, new ComparisonPolicy(), diff);
+        assertEquals(1, diff.getAdd().size());
+        assertEquals(1, diff.getDelete().size());
+        assertEquals(1, diff.getModify().size());
+        assertEquals("10", diff.getModify().get(0).get(0));
+    }
+
+    @Test
+    public void unchangedColumnsAreStoredOnce() throws Exception {
+        write(1, rows(1, 5, 0));
+        write(2, rows(1, 5, 3));
+        // 2 manifests, the ID column, 2 NAME columns and 2 hash files
+        assertEquals(2 + 1 + 2 + 2, folder.getRoot().toPath().resolve("EMP").toFile().list().length);
+        store.drop("EMP", 1);
+        assertEquals(1 + 1 + 1 + 1, folder.getRoot().toPath().resolve("EMP").toFile().list().length);
+    }
+
+    @Test
+    public void valuesAreComparedByThePolicy() throws Exception {
+        Column id = new Column("ID", Value.LONG);
+        id.setPrimaryKey(true);
+        columns = Arrays.asList(id, new Column("PRICE", Value.DECIMAL));
+        hasher = new RowHasher(columns);
+        write(1, Arrays.asList(new Object[]{1L, new BigDecimal("1.000")}, new Object[]{2L, new BigDecimal("2.000")}));
+        write(2, Arrays.asList(new Object[]{1L, new BigDecimal("1.004")}, new Object[]{2L, new BigDecimal("2.500")}));
+
+        ComparisonPolicy policy = new ComparisonPolicy();
+        policy.setNumericTolerance(new BigDecimal("0.01"));
+        Diff diff = new Diff(columns);
+        store.diff("EMP", 1, 2, columns, policy, diff);
+        assertEquals(1, diff.getModify().size());
+        assertEquals("2", diff.getModify().get(0).get(0));
+    }
+}
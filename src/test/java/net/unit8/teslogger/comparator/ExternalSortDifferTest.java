@@ -0,0 +1,88 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class ExternalSortDifferTest {
+    private Connection conn;
+    private List<Column> columns;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:externalsort");
+        columns = Arrays.asList(new Column("NAME", Value.STRING), new Column("AGE", Value.INT));
+        // The previous version has three copies of a row, the current one two copies of another.
+        version("PREVIOUS", "a", 1, "a", 1, "a", 1, "b", 2, "c", 3, "d", 4);
+        version("CURRENT", "a", 1, "b", 2, "b", 2, "c", 30, "e", 5);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    /**
+     * Creates a version table of the rows, given as pairs of name and age.
+     */
+    private void version(String table, Object... values) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE " + table + "(NAME varchar(10), AGE integer, "
+                    + RowHasher.HASH_COLUMN + " bigint)");
+        }
+        RowHasher hasher = new RowHasher(columns);
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + table + " VALUES (?, ?, ?)")) {
+            for (int i = 0; i < values.length; i += 2) {
+                stmt.setObject(1, values[i]);
+                stmt.setObject(2, values[i + 1]);
+                stmt.setLong(3, hasher.hash(new Object[]{values[i], values[i + 1]}));
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    private Diff diff(List<String> logicalKey, String current, String previous) throws SQLException {
+        Diff diff = new Diff(columns);
+        // Two hashes in memory, so that each version is spilled into several runs
+        new ExternalSortDiffer(columns, logicalKey, 2, new ComparisonPolicy())
+                .diff(conn, current, previous, diff);
+        return diff;
+    }
+
+    @Test
+    public void duplicateRowsAreCounted() throws SQLException {
+        Diff diff = diff(Collections.<String>emptyList(), "CURRENT", "PREVIOUS");
+        assertEquals(3, diff.getAdd().size());
+        assertEquals(0, diff.getModify().size());
+        assertEquals(4, diff.getDelete().size());
+        assertEquals(2, Collections.frequency(diff.getDelete(), Arrays.asList("a", "1")));
+        assertEquals(1, Collections.frequency(diff.getAdd(), Arrays.asList("b", "2")));
+    }
+
+    @Test
+    public void rowsArePairedByTheLogicalKey() throws SQLException {
+        Diff diff = diff(Collections.singletonList("name"), "CURRENT", "PREVIOUS");
+        assertEquals(2, diff.getAdd().size());
+        assertEquals(1, diff.getModify().size());
+        assertEquals(3, diff.getDelete().size());
+        assertEquals("c", diff.getModify().get(0).get(0));
+    }
+
+    @Test
+    public void sameVersionsHaveNoDifference() throws SQLException {
+        Diff diff = diff(Collections.<String>emptyList(), "PREVIOUS", "PREVIOUS");
+        assertEquals(0, diff.getAdd().size() + diff.getModify().size() + diff.getDelete().size());
+    }
+}
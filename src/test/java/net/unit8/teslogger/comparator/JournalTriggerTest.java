@@ -0,0 +1,78 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class JournalTriggerTest {
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:journal");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE item(id bigint, name varchar(100), PRIMARY KEY(id))");
+            stmt.executeUpdate("INSERT INTO item VALUES (1, 'one')");
+            stmt.executeUpdate("INSERT INTO item VALUES (2, 'two')");
+        }
+        TriggerJournal.forDatabase(conn.getMetaData(), "ITEM", Collections.<Column>emptyList()).install(conn);
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    /**
+     * Returns the journaled operations with the ids, in the order of the changes.
+     */
+    private List<String> journal() throws SQLException {
+        List<String> journal = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT " + IncrementalCapture.OP_COLUMN + ", id FROM "
+                     + TriggerJournal.journalTable("ITEM") + " ORDER BY " + TriggerJournal.SEQ_COLUMN)) {
+            while (rs.next()) {
+                journal.add(rs.getString(1) + rs.getLong(2));
+            }
+        }
+        return journal;
+    }
+
+    @Test
+    public void changesAreJournaledInOrder() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("INSERT INTO item VALUES (3, 'three')");
+            stmt.executeUpdate("UPDATE item SET name = 'uno' WHERE id = 1");
+            stmt.executeUpdate("DELETE FROM item WHERE id = 2");
+        }
+        assertEquals(Arrays.asList("I3", "U1", "D2"), journal());
+    }
+
+    @Test
+    public void keyChangeIsJournaledAsDeleteAndInsert() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE item SET id = 10 WHERE id = 1");
+        }
+        assertEquals(Arrays.asList("D1", "I10"), journal());
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM " + TriggerJournal.journalTable("ITEM")
+                     + " ORDER BY " + TriggerJournal.SEQ_COLUMN)) {
+            assertTrue(rs.next());
+            assertEquals("one", rs.getString(1));
+            assertTrue(rs.next());
+            assertEquals("one", rs.getString(1));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.unit8.teslogger.comparator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class MappedFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void valuesAcrossChunks() throws Exception {
+        File file = folder.newFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeByte(1);
+            out.writeLong(0x0102030405060708L);
+            out.writeInt(-2);
+            out.write("snapshot".getBytes("UTF-8"));
+        }
+        // Chunks of 8 bytes put every value across two chunks
+        MappedFile mapped = new MappedFile(file, false, 3);
+        assertEquals(21, mapped.size());
+        assertEquals(0x0102030405060708L, mapped.getLong(1));
+        assertEquals(-2, mapped.getInt(9));
+        byte[] bytes = new byte[8];
+        mapped.read(13, bytes);
+        assertEquals("snapshot", new String(bytes, "UTF-8"));
+    }
+
+    @Test
+    public void valuesWrittenAcrossChunks() throws Exception {
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[16]);
+        }
+        try (MappedFile mapped = new MappedFile(file, true, 3)) {
+            mapped.putLong(5, 0x0102030405060708L);
+            assertEquals(0x0102030405060708L, mapped.getLong(5));
+        }
+        try (MappedFile mapped = new MappedFile(file)) {
+            assertEquals(0x0102030405060708L, mapped.getLong(5));
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void positionOutOfFile() throws Exception {
+        File file = folder.newFile();
+        new MappedFile(file).getLong(0);
+    }
+}
@@ -0,0 +1,70 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class MergeJoinDifferTest {
+    private Connection conn;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:mergejoin");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE numbered(ID bigint, PRIMARY KEY(ID))");
+            stmt.executeUpdate("CREATE TABLE named(CODE varchar(10), PRIMARY KEY(CODE))");
+            for (int i = 0; i < 10; i++) {
+                stmt.executeUpdate("INSERT INTO numbered VALUES (" + (100 + i * 10) + ")");
+                stmt.executeUpdate("INSERT INTO named VALUES ('c" + i + "')");
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    private static MergeJoinDiffer differ(String keyName, int type) {
+        Column key = new Column(keyName, type);
+        key.setPrimaryKey(true);
+        return new MergeJoinDiffer(Collections.singletonList(key), new ComparisonPolicy());
+    }
+
+    @Test
+    public void numericKeysAreSplitBetweenTheirBounds() throws SQLException {
+        List<Object> points = differ("ID", Value.LONG).splitPoints(conn, "numbered", 3);
+        assertEquals(Arrays.<Object>asList(130L, 160L), points);
+    }
+
+    @Test
+    public void otherKeysAreSplitByTheirPositions() throws SQLException {
+        List<Object> points = differ("CODE", Value.STRING).splitPoints(conn, "named", 4);
+        assertEquals(Arrays.<Object>asList("c2", "c5", "c7"), points);
+    }
+
+    @Test
+    public void smallTablesHaveFewerRanges() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("DELETE FROM named WHERE CODE > 'c1'");
+            stmt.executeUpdate("DELETE FROM numbered WHERE ID > 101");
+        }
+        assertEquals(Arrays.<Object>asList("c1"), differ("CODE", Value.STRING).splitPoints(conn, "named", 4));
+        assertEquals(Collections.emptyList(), differ("ID", Value.LONG).splitPoints(conn, "numbered", 4));
+    }
+}
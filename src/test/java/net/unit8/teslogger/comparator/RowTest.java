@@ -0,0 +1,74 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class RowTest {
+    private List<Column> columns() {
+        Column id = new Column("ID", Value.LONG);
+        id.setPrimaryKey(true);
+        return Arrays.asList(id, new Column("PRICE", Value.DECIMAL), new Column("UPDATED_AT", Value.TIMESTAMP));
+    }
+
+    @Test
+    public void typedValuesReadAsText() {
+        Row row = new Row(columns());
+        row.add(1L);
+        row.add(new BigDecimal("1.50"));
+        row.add(Timestamp.valueOf("2014-01-02 03:04:05.6"));
+        assertEquals(Arrays.<Object>asList("1", "1.50", "2014-01-02 03:04:05.6"), row);
+        assertEquals(Arrays.<Object>asList("1"), row.getPrimaryKey());
+
+        Row text = new Row(columns());
+        text.addAll(Arrays.asList("1", "1.50", "2014-01-02 03:04:05.6"));
+        assertEquals(row, text);
+        assertTrue(row.changedColumns(text).isEmpty());
+    }
+
+    @Test
+    public void modifiedRowsKeepPairs() {
+        List<Column> columns = columns();
+        Row current = new Row(columns);
+        current.addAll(Arrays.<Object>asList(1L, new BigDecimal("2.00"), null));
+        Row previous = new Row(columns);
+        previous.addAll(Arrays.<Object>asList(1L, new BigDecimal("1.50"), null));
+
+        Diff diff = new Diff(columns);
+        diff.modify(current, previous);
+        Row modified = diff.getModify().get(0);
+        assertEquals("1", modified.get(0));
+        assertArrayEquals(new Object[]{"1.50", "2.00"}, (Object[]) modified.get(1));
+        assertNull(modified.get(2));
+        assertEquals(previous.diff(current).size(), modified.size());
+    }
+
+    @Test
+    public void onlyTheAddedRowIsPromoted() {
+        List<Column> columns = Arrays.asList(new Column("NAME", Value.STRING), new Column("AGE", Value.INT));
+        Row added = new Row(columns);
+        added.addAll(Arrays.<Object>asList("a", 1));
+        Row copy = new Row(columns);
+        copy.addAll(Arrays.<Object>asList("a", 1));
+        Row previous = new Row(columns);
+        previous.addAll(Arrays.<Object>asList("a", 2));
+
+        Diff diff = new Diff(columns);
+        diff.add(added);
+        diff.add(copy);
+        diff.modify(copy, previous);
+        assertEquals(1, diff.getAdd().size());
+        assertSame(added, diff.getAdd().get(0));
+        assertEquals(1, diff.getModify().size());
+    }
+}
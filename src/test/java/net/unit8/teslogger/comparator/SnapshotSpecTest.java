@@ -0,0 +1,64 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class SnapshotSpecTest {
+    private List<Column> columns() {
+        Column id = new Column("ID", Value.LONG);
+        id.setPrimaryKey(true);
+        return Arrays.asList(id, new Column("NAME", Value.STRING), new Column("AGE", Value.INT),
+                new Column("REGISTERED_AT", Value.TIMESTAMP));
+    }
+
+    private static List<String> names(List<Column> columns) {
+        List<String> names = new ArrayList<>();
+        for (Column column : columns) {
+            names.add(column.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void allColumnsByDefault() {
+        SnapshotSpec spec = new SnapshotSpec("emp");
+        assertFalse(spec.isProjected());
+        assertEquals(Arrays.asList("ID", "NAME", "AGE", "REGISTERED_AT"), names(spec.project(columns())));
+    }
+
+    @Test
+    public void includedColumnsKeepThePrimaryKey() {
+        SnapshotSpec spec = new SnapshotSpec("emp");
+        spec.setIncludeColumns("age", "Name");
+        assertTrue(spec.isProjected());
+        assertEquals(Arrays.asList("ID", "NAME", "AGE"), names(spec.project(columns())));
+    }
+
+    @Test
+    public void excludedColumnsKeepThePrimaryKey() {
+        SnapshotSpec spec = new SnapshotSpec("emp");
+        spec.setExcludeColumns("registered_at", "id");
+        assertEquals(Arrays.asList("ID", "NAME", "AGE"), names(spec.project(columns())));
+
+        spec.setIncludeColumns("name", "age");
+        spec.setExcludeColumns("age");
+        assertEquals(Arrays.asList("ID", "NAME"), names(spec.project(columns())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownColumns() {
+        SnapshotSpec spec = new SnapshotSpec("emp");
+        spec.setExcludeColumns("salary");
+        spec.project(columns());
+    }
+}
@@ -0,0 +1,97 @@
+package net.unit8.teslogger.comparator;
+
+import org.h2.table.Column;
+import org.h2.value.Value;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author kawasima
+ */
+public class TableProberTest {
+    private Connection conn;
+    private List<Column> columns;
+
+    @Before
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:prober");
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE item(ID bigint, A varchar(10), B varchar(10), C varchar(10),"
+                    + " D varchar(10), DOC clob, PRIMARY KEY(ID))");
+            for (int i = 1; i <= 10; i++) {
+                stmt.executeUpdate("INSERT INTO item VALUES (" + i + ", 'a', 'b', 'c', 'd', 'doc')");
+            }
+        }
+        Column id = new Column("ID", Value.LONG);
+        id.setPrimaryKey(true);
+        columns = Arrays.asList(id, new Column("A", Value.STRING), new Column("B", Value.STRING),
+                new Column("C", Value.STRING), new Column("D", Value.STRING), new Column("DOC", Value.CLOB));
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(sql);
+        }
+    }
+
+    @Test
+    public void boundsTellAddedRows() throws SQLException {
+        TableProber prober = new TableProber("item", columns, null, 2, 0);
+        TableProbe probe = prober.probe(conn);
+        assertEquals(10L, probe.getRowCount());
+        assertEquals("10", probe.getMaxKey());
+        assertTrue(prober.matches(conn, probe));
+
+        execute("INSERT INTO item VALUES (11, 'a', 'b', 'c', 'd', 'doc')");
+        assertFalse(prober.matches(conn, probe));
+    }
+
+    @Test
+    public void onlySampledColumnsAreHashed() throws SQLException {
+        // Two of the four non-LOB columns are sampled, spread over them: A and C.
+        TableProber prober = new TableProber("item", columns, null, 2, 0);
+        TableProbe probe = prober.probe(conn);
+
+        execute("UPDATE item SET B = 'x', D = 'x', DOC = 'x' WHERE ID = 5");
+        assertTrue(prober.matches(conn, probe));
+
+        execute("UPDATE item SET C = 'x' WHERE ID = 5");
+        assertFalse(prober.matches(conn, probe));
+    }
+
+    @Test
+    public void allColumnsAreHashedWhenTheSampleCoversThem() throws SQLException {
+        TableProber prober = new TableProber("item", columns, null, 10, 100);
+        TableProbe probe = prober.probe(conn);
+
+        execute("UPDATE item SET D = 'x' WHERE ID = 5");
+        assertFalse(prober.matches(conn, probe));
+    }
+
+    @Test
+    public void rowsOutsideTheConditionAreIgnored() throws SQLException {
+        TableProber prober = new TableProber("item", columns, "ID <= 5", 4, 0);
+        TableProbe probe = prober.probe(conn);
+        assertEquals(5L, probe.getRowCount());
+
+        execute("UPDATE item SET A = 'x' WHERE ID = 8");
+        assertTrue(prober.matches(conn, probe));
+        execute("UPDATE item SET A = 'x' WHERE ID = 3");
+        assertFalse(prober.matches(conn, probe));
+    }
+}
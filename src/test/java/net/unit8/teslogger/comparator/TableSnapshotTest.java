@@ -7,14 +7,37 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import javax.management.MBeanServer;
 import javax.sql.DataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author kawasima
@@ -36,6 +59,17 @@ public class TableSnapshotTest {
                 stmt.executeUpdate("DROP TABLE emp");
             } catch(SQLException ignore) {}
 
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DROP TABLE dept");
+            } catch(SQLException ignore) {}
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE dept (" +
+                        "ID bigint auto_increment," +
+                        "NAME varchar(100)," +
+                        "PRIMARY KEY (id))");
+            }
+
             try (Statement stmt = conn.createStatement()) {
                 stmt.executeUpdate("CREATE TABLE emp (" +
                         "ID bigint auto_increment," +
@@ -47,6 +81,70 @@ public class TableSnapshotTest {
         }
     }
 
+    /**
+     * Executes the statements on the source database.
+     */
+    private static void execute(String... sql) throws SQLException {
+        try (Connection targetConn = ds.getConnection();
+             Statement stmt = targetConn.createStatement()) {
+            for (String statement : sql) {
+                stmt.executeUpdate(statement);
+            }
+        }
+    }
+
+    /**
+     * Inserts employees named emp0, emp1, ... and aged 0, 1, ..., whose ids are generated from 1.
+     */
+    private static void insertEmps(int count) throws SQLException {
+        try (Connection targetConn = ds.getConnection();
+             PreparedStatement stmt = targetConn.prepareStatement("INSERT INTO emp(name, age) values (?, ?)")) {
+            for (int i = 0; i < count; i++) {
+                stmt.setString(1, "emp" + i);
+                stmt.setInt(2, i);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Inserts employees with the ids from 0, named and aged after their ids.
+     */
+    private static void insertEmpsWithIds(int count) throws SQLException {
+        try (Connection targetConn = ds.getConnection();
+             PreparedStatement stmt = targetConn.prepareStatement("INSERT INTO emp(id, name, age) values (?, ?, ?)")) {
+            for (int i = 0; i < count; i++) {
+                stmt.setLong(1, i);
+                stmt.setString(2, "emp" + i);
+                stmt.setInt(3, i);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Inserts departments named dept0, dept1, ..., whose ids are generated from 1.
+     */
+    private static void insertDepts(int count) throws SQLException {
+        try (Connection targetConn = ds.getConnection();
+             PreparedStatement stmt = targetConn.prepareStatement("INSERT INTO dept(name) values (?)")) {
+            for (int i = 0; i < count; i++) {
+                stmt.setString(1, "dept" + i);
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    private static void assertDiff(Diff diff, int added, int modified, int deleted) {
+        assertDiff(null, diff, added, modified, deleted);
+    }
+
+    private static void assertDiff(String message, Diff diff, int added, int modified, int deleted) {
+        assertEquals(message, added, diff.getAdd().size());
+        assertEquals(message, modified, diff.getModify().size());
+        assertEquals(message, deleted, diff.getDelete().size());
+    }
+
     @Test
     public void testCandidates() throws SQLException {
         TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:file:./target/comparator");
@@ -82,7 +180,590 @@ public class TableSnapshotTest {
         }
 
         snapshot.take("emp");
-        System.out.println(JSON.encode(snapshot.diffFromPrevious("emp")));
+        Diff diff = snapshot.diffFromPrevious("emp");
+        System.out.println(JSON.encode(diff));
+        assertDiff(diff, 0, 1, 0);
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testReopen() throws SQLException, IOException {
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(Paths.get("./target/"), "reopen.*")) {
+            for (Path file : dirStream) {
+                Files.delete(file);
+            }
+        }
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:file:./target/reopen");
+        snapshot.take("emp");
+        execute("INSERT INTO emp(name, age) values ('kawasima', 3)");
+        snapshot.take("emp");
+        long from = snapshot.getVersioning().getPreviousVersionId("EMP");
+        long to = snapshot.getVersioning().getCurrentVersionId("EMP");
+        snapshot.dispose();
+
+        // A new instance reads the table definition and the versions from the snapshot database
+        TableSnapshot reopened = new TableSnapshot(ds, "jdbc:h2:file:./target/reopen");
+        Diff diff = reopened.diff("emp", from, to);
+        assertEquals(1, diff.getAdd().size());
+        assertEquals(0, diff.getDelete().size());
+        assertEquals(1, reopened.diffFromPrevious("emp").getAdd().size());
+        reopened.dispose();
+    }
+
+    @Test
+    public void testParallel() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:parallel");
+        snapshot.setParallelism(2);
+        snapshot.take(new String[]{"emp", "dept"});
+
+        execute("INSERT INTO emp(name, age) values ('kawasima', 3)",
+                "INSERT INTO dept(name) values ('dev')");
+        snapshot.take(new String[]{"emp", "dept"});
+        assertEquals(1, snapshot.diffFromPrevious("emp").getAdd().size());
+        assertEquals(1, snapshot.diffFromPrevious("dept").getAdd().size());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testDiffEngines() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:engines");
+        insertEmps(12);
+        snapshot.take("emp");
+        execute("UPDATE emp SET age = 99 WHERE id IN (2, 10)",
+                "DELETE FROM emp WHERE id = 3",
+                "INSERT INTO emp(name, age) values ('new', 1)");
+        snapshot.take("emp");
+
+        for (DiffEngine engine : DiffEngine.values()) {
+            snapshot.setDiffEngine(engine);
+            Diff diff = snapshot.diffFromPrevious("emp");
+            assertDiff(engine.name(), diff, 1, 2, 1);
+        }
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testIncremental() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:incremental");
+        snapshot.setCaptureMode(CaptureMode.INCREMENTAL);
+        snapshot.setBatchSize(2);
+        insertEmps(5);
+        snapshot.take("emp");
+        execute("UPDATE emp SET age = 99 WHERE id = 2",
+                "DELETE FROM emp WHERE id = 3",
+                "INSERT INTO emp(name, age) values ('new', 1)");
+        snapshot.take("emp");
+        CopyStatistics statistics = snapshot.getCopyStatistics("emp");
+        assertEquals(4, statistics.getRows());
+        assertEquals(2, statistics.getBatches());
+        assertEquals(1, statistics.getCommits());
+
+        Diff diff = snapshot.diffFromPrevious("emp");
+        assertDiff(diff, 1, 1, 1);
+
+        snapshot.take("emp");
+        diff = snapshot.diffFromPrevious("emp");
+        assertEquals(0, diff.getAdd().size() + diff.getModify().size() + diff.getDelete().size());
+
+        execute("UPDATE emp SET name = 'renamed' WHERE id = 2");
+        snapshot.setCaptureMode(CaptureMode.FULL);
+        snapshot.take("emp");
+        diff = snapshot.diffFromPrevious("emp");
+        assertEquals(1, diff.getModify().size());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testTriggerCapture() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:trigger");
+        snapshot.setCaptureMode(CaptureMode.TRIGGER);
+        insertEmpsWithIds(5);
+        snapshot.take("emp");
+        execute("INSERT INTO emp(id, name, age) values (10, 'new', 10)",
+                "UPDATE emp SET age = 20 WHERE id = 1",
+                "UPDATE emp SET age = 30 WHERE id = 1",
+                "UPDATE emp SET id = 11 WHERE id = 2",
+                "DELETE FROM emp WHERE id = 3",
+                "UPDATE emp SET age = 4 WHERE id = 4");
+        snapshot.take("emp");
+
+        Diff diff = snapshot.diffFromPrevious("emp");
+        assertDiff(diff, 2, 1, 2);
+        assertEquals(6, snapshot.getCopyStatistics("emp").getRows());
+        try (Connection targetConn = ds.getConnection();
+             Statement stmt = targetConn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM emp$jn")) {
+            rs.next();
+            assertEquals(0, rs.getInt(1));
+        }
+
+        snapshot.take("emp");
+        assertEquals(0, snapshot.diffFromPrevious("emp").getModify().size());
+        snapshot.dropJournal("emp");
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testDiffBetweenVersions() throws SQLException {
+        for (CaptureMode captureMode : CaptureMode.values()) {
+            TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:between" + captureMode);
+            snapshot.setCaptureMode(captureMode);
+            snapshot.setParallelism(2);
+            execute("DELETE FROM emp");
+            insertEmpsWithIds(5);
+            snapshot.take(new String[]{"emp", "dept"});
+            long baseline = snapshot.getVersioning().getCurrentVersionId("EMP");
+            execute("UPDATE emp SET age = 99 WHERE id = 1",
+                    "UPDATE emp SET age = 99 WHERE id = 2",
+                    "INSERT INTO emp(id, name, age) values (10, 'tmp', 1)",
+                    "INSERT INTO dept(name) values ('dept')");
+            snapshot.take(new String[]{"emp", "dept"});
+            execute("UPDATE emp SET age = 1 WHERE id = 1",
+                    "DELETE FROM emp WHERE id IN (3, 10)",
+                    "INSERT INTO emp(id, name, age) values (11, 'new', 1)");
+            snapshot.take(new String[]{"emp", "dept"});
+            long checkpoint = snapshot.getVersioning().getCurrentVersionId("EMP");
+
+            Diff diff = snapshot.diff("emp", baseline, checkpoint);
+            assertDiff(captureMode.name(), diff, 1, 1, 1);
+
+            Diff reversed = snapshot.diff("emp", checkpoint, baseline);
+            assertEquals(1, reversed.getAdd().size());
+            assertEquals(1, reversed.getDelete().size());
+
+            Map<String, Diff> diffs = snapshot.diff(new String[]{"emp", "dept"}, baseline, checkpoint);
+            assertEquals(1, diffs.get("EMP").getModify().size());
+            assertEquals(1, diffs.get("DEPT").getAdd().size());
+            snapshot.dispose();
+        }
+    }
+
+    @Test
+    public void testColumnarStore() throws SQLException, IOException {
+        Path directory = Paths.get("./target/columnar");
+        if (Files.exists(directory)) {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:columnar");
+        snapshot.setSnapshotStore(new ColumnarSnapshotStore(directory.toFile()));
+        try (Connection targetConn = ds.getConnection();
+             Statement stmt = targetConn.createStatement()) {
+            for (int i = 0; i < 5; i++) {
+                stmt.executeUpdate("INSERT INTO emp(name, age) values ('emp" + i + "', 20)");
+            }
+        }
+        snapshot.take("emp");
+        execute("UPDATE emp SET age = 99 WHERE id = 2");
+        snapshot.take("emp");
+
+        Diff diff = snapshot.diffFromPrevious("emp");
+        assertDiff(diff, 0, 1, 0);
+        // 2 manifests, 4 columns and hashes of the first version, and the changed age column and hashes.
+        assertEquals(2 + 5 + 2, directory.resolve("EMP").toFile().list().length);
+
+        execute("DELETE FROM emp WHERE id = 1");
+        snapshot.take("emp");
+        diff = snapshot.diffFromPrevious("emp");
+        assertEquals(1, diff.getDelete().size());
+
+        snapshot.prune("emp", 1);
+        assertEquals(1 + 4 + 1, directory.resolve("EMP").toFile().list().length);
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testExport() throws SQLException, IOException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:export");
+        insertEmps(5);
+        snapshot.take("emp");
+        execute("UPDATE emp SET age = 99 WHERE id = 2",
+                "DELETE FROM emp WHERE id = 3",
+                "INSERT INTO emp(name, age) values (null, null)");
+        snapshot.take("emp");
+        File previous = new File("target/emp-previous.snapshot");
+        File current = new File("target/emp-current.snapshot");
+        snapshot.export("emp", snapshot.getVersioning().getPreviousVersionId("EMP"), previous);
+        snapshot.export("emp", current);
+        Diff expected = snapshot.diffFromPrevious("emp");
+        snapshot.dispose();
+
+        try (SnapshotFile previousFile = SnapshotFile.open(previous);
+             SnapshotFile currentFile = SnapshotFile.open(current)) {
+            assertTrue(previousFile.isSorted());
+            assertTrue(currentFile.isSorted());
+            Diff diff = SnapshotFile.diff(previousFile, currentFile);
+            assertEquals(JSON.encode(expected), JSON.encode(diff));
+            ComparisonPolicy policy = new ComparisonPolicy();
+            policy.setNumericTolerance(new BigDecimal("100"));
+            Diff tolerant = SnapshotFile.diff(previousFile, currentFile, policy);
+            assertEquals(0, tolerant.getModify().size());
+            assertEquals(1, tolerant.getDelete().size());
+        }
+
+        TableSnapshot imported = new TableSnapshot(ds, "jdbc:h2:mem:import");
+        imported.importVersion(previous);
+        imported.importVersion(current);
+        assertEquals(JSON.encode(expected), JSON.encode(imported.diffFromPrevious("emp")));
+        imported.dispose();
+    }
+
+    @Test
+    public void testExportWithoutPrimaryKey() throws SQLException, IOException {
+        execute("DROP TABLE IF EXISTS access_log",
+                "CREATE TABLE access_log (NAME varchar(100), STATUS integer)",
+                "INSERT INTO access_log VALUES ('a', 1), ('a', 1), ('b', 2)");
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:exportUnsorted");
+        snapshot.take("access_log");
+        execute("DELETE FROM access_log WHERE ROWNUM() = 1 AND name = 'a'",
+                "UPDATE access_log SET status = 5 WHERE name = 'b'",
+                "INSERT INTO access_log VALUES ('a', 1)");
+        snapshot.take("access_log");
+        File previous = new File("target/access_log-previous.snapshot");
+        File current = new File("target/access_log-current.snapshot");
+        snapshot.export("access_log", snapshot.getVersioning().getPreviousVersionId("ACCESS_LOG"), previous);
+        snapshot.export("access_log", current);
+        snapshot.dispose();
+
+        try (SnapshotFile previousFile = SnapshotFile.open(previous);
+             SnapshotFile currentFile = SnapshotFile.open(current)) {
+            assertFalse(previousFile.isSorted());
+            Diff diff = SnapshotFile.diff(previousFile, currentFile);
+            assertEquals(1, diff.getAdd().size());
+            assertEquals(Arrays.asList("b", "5"), diff.getAdd().get(0));
+            assertEquals(1, diff.getDelete().size());
+            assertEquals(Arrays.asList("b", "2"), diff.getDelete().get(0));
+        }
+    }
+
+    @Test
+    public void testDiffWriters() throws SQLException, IOException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:writers");
+        insertEmps(5);
+        snapshot.take("emp");
+        execute("UPDATE emp SET name = 'say \"hello\", world' WHERE id = 2",
+                "DELETE FROM emp WHERE id = 3",
+                "INSERT INTO emp(name, age) values (null, 1)");
+        snapshot.take("emp");
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        snapshot.diffFromPrevious("emp", DiffFormat.JSON, json);
+        Map<String, List<Map<String, Object>>> decoded = JSON.decode(json.toString("UTF-8"));
+        assertEquals(3, decoded.get("changes").size());
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        snapshot.diffFromPrevious("emp", DiffFormat.CSV, csv);
+        String[] records = csv.toString("UTF-8").split("\r\n");
+        assertEquals(5, records.length);
+        assertEquals("change,ID,NAME,AGE,REGISTERED_AT", records[0]);
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testShardedDiff() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:sharded");
+        insertEmps(100);
+        snapshot.take("emp");
+        execute("UPDATE emp SET age = 99 WHERE MOD(id, 7) = 0",
+                "DELETE FROM emp WHERE MOD(id, 11) = 0",
+                "INSERT INTO emp(name, age) values ('new', 1)");
+        snapshot.take("emp");
+
+        String expected = JSON.encode(snapshot.diffFromPrevious("emp"));
+        snapshot.setDiffShards(4);
+        assertEquals(expected, JSON.encode(snapshot.diffFromPrevious("emp")));
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testSnapshotSpec() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:spec");
+        snapshot.setCaptureMode(CaptureMode.INCREMENTAL);
+        insertEmpsWithIds(5);
+        SnapshotSpec spec = new SnapshotSpec("emp");
+        spec.setWhere("age >= 2");
+        spec.setExcludeColumns("registered_at", "id");
+        snapshot.take(new SnapshotSpec[]{spec});
+        execute("UPDATE emp SET registered_at = DATEADD('DAY', 1, registered_at)",
+                "UPDATE emp SET name = 'filtered' WHERE id = 0",
+                "UPDATE emp SET name = 'renamed' WHERE id = 3");
+        snapshot.take("emp");
+
+        Diff diff = snapshot.diffFromPrevious("emp");
+        assertEquals(Arrays.asList("ID", "NAME", "AGE"), diff.getHeaders());
+        assertDiff(diff, 0, 1, 0);
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testSchemaCache() throws SQLException, IOException {
+        File cacheFile = new File("target/schema.cache");
+        cacheFile.delete();
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:schemaCache");
+        snapshot.setSchemaCache(cacheFile);
+        snapshot.setParallelism(2);
+        snapshot.take(new String[]{"emp", "dept"});
+        assertTrue(cacheFile.exists());
+        snapshot.dispose();
+
+        snapshot = new TableSnapshot(ds, "jdbc:h2:mem:schemaCache");
+        snapshot.setSchemaCache(cacheFile);
+        snapshot.loadMetadata(new String[]{"emp"});
+        assertEquals(4, snapshot.columns("EMP").size());
+        assertTrue(snapshot.columns("EMP").get(0).isPrimaryKey());
+        snapshot.dispose();
+
+        execute("ALTER TABLE emp ADD COLUMN note varchar(100)");
+        snapshot = new TableSnapshot(ds, "jdbc:h2:mem:schemaCache");
+        snapshot.setSchemaCache(cacheFile);
+        snapshot.loadMetadata(new String[]{"emp"});
+        assertEquals(5, snapshot.columns("EMP").size());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:metrics");
+        JmxSnapshotMetrics metrics = new JmxSnapshotMetrics("test");
+        metrics.register();
+        snapshot.setMetrics(metrics);
+        snapshot.setBatchSize(10);
+        snapshot.setDiffEngine(DiffEngine.MINUS);
+        snapshot.take("emp");
+        insertEmps(25);
+        snapshot.take("emp");
+        snapshot.diffFromPrevious("emp");
+
+        assertEquals(1, metrics.getCount("EMP", SnapshotMetrics.Phase.METADATA));
+        assertEquals(2, metrics.getCount("EMP", SnapshotMetrics.Phase.CREATE));
+        assertEquals(2, metrics.getCount("EMP", SnapshotMetrics.Phase.COPY));
+        assertEquals(25, metrics.getRows("EMP", SnapshotMetrics.Phase.COPY));
+        assertEquals(3, metrics.getBatches("EMP"));
+        assertEquals(10, metrics.getMaxBatchRows("EMP"));
+        assertEquals(25, metrics.getRows("EMP", SnapshotMetrics.Phase.DIFF_ADD));
+        assertEquals(1, metrics.getCount("EMP", SnapshotMetrics.Phase.DIFF_DELETE));
+        assertTrue(metrics.getCount(null, SnapshotMetrics.Phase.VERSIONING) > 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(25L, server.getAttribute(metrics.getObjectName(), "EMP.COPY.rows"));
+        assertEquals(3L, server.getAttribute(metrics.getObjectName(), "EMP.batches"));
+        metrics.unregister();
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testConcurrentTables() throws Exception {
+        final TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:concurrent");
+        insertEmps(20);
+        insertDepts(20);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Diff>> futures = new ArrayList<>();
+            for (final String table : new String[]{"emp", "dept"}) {
+                futures.add(executor.submit(new Callable<Diff>() {
+                    @Override
+                    public Diff call() throws SQLException {
+                        snapshot.take(table);
+                        execute("DELETE FROM " + table + " WHERE id <= 5");
+                        snapshot.take(table);
+                        return snapshot.diffFromPrevious(table);
+                    }
+                }));
+            }
+            for (Future<Diff> future : futures) {
+                assertEquals(5, future.get().getDelete().size());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testChecksum() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:checksum");
+        InMemorySnapshotMetrics metrics = new InMemorySnapshotMetrics();
+        snapshot.setMetrics(metrics);
+        snapshot.setDiffEngine(DiffEngine.MINUS);
+        execute("INSERT INTO emp(name, age) values ('kawasima', 3)");
+        snapshot.take("emp");
+        snapshot.take("emp");
+        try (Connection snapshotConn = DriverManager.getConnection("jdbc:h2:mem:checksum")) {
+            Versioning versioning = new Versioning(snapshotConn);
+            TableChecksum current = versioning.getChecksum("EMP", versioning.getCurrentVersionId("EMP"));
+            assertEquals(1, current.getRowCount());
+            assertEquals(current, versioning.getChecksum("EMP", versioning.getPreviousVersionId("EMP")));
+        }
+        assertEquals(0, snapshot.diffFromPrevious("emp").getModify().size());
+        // The equal checksums skip the MINUS queries
+        assertEquals(1, metrics.getCount("EMP", SnapshotMetrics.Phase.DIFF));
+        assertEquals(0, metrics.getCount("EMP", SnapshotMetrics.Phase.DIFF_ADD));
+        assertEquals(0, metrics.getCount("EMP", SnapshotMetrics.Phase.DIFF_DELETE));
+
+        execute("UPDATE emp SET age = 4");
+        snapshot.take("emp");
+        assertEquals(1, snapshot.diffFromPrevious("emp").getModify().size());
+        assertEquals(1, metrics.getCount("EMP", SnapshotMetrics.Phase.DIFF_ADD));
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testTakeChanged() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:probe");
+        snapshot.setProbeColumns(2);
+        snapshot.setParallelism(2);
+        execute("INSERT INTO dept(name) values ('dev')",
+                "INSERT INTO emp(name, age) values ('kawasima', 3)");
+        assertEquals(Arrays.asList("DEPT", "EMP"), snapshot.takeChanged(new String[]{"dept", "emp"}));
+        assertEquals(0, snapshot.findChangedTables(new String[]{"dept", "emp"}).size());
+
+        execute("UPDATE emp SET age = 4");
+        assertEquals(Arrays.asList("EMP"), snapshot.takeChanged(new String[]{"dept", "emp"}));
+        Diff diff = snapshot.diffFromPrevious("emp");
+        assertEquals(1, diff.getModify().size());
+        assertEquals(0, snapshot.findChangedTables(new String[]{"dept", "emp"}).size());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testExternalSortDiff() throws SQLException {
+        execute("DROP TABLE IF EXISTS access_log",
+                "CREATE TABLE access_log (NAME varchar(100), STATUS integer)",
+                "INSERT INTO access_log VALUES ('a', 1), ('a', 1), ('b', 2), ('c', 3)");
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:externalSort");
+        snapshot.setDiffEngine(DiffEngine.EXTERNAL_SORT);
+        snapshot.setSortBufferSize(2);
+        SnapshotSpec spec = new SnapshotSpec("access_log");
+        spec.setLogicalKey("name");
+        snapshot.take(new SnapshotSpec[]{spec});
+        execute("DELETE FROM access_log WHERE ROWNUM() = 1 AND name = 'a'",
+                "UPDATE access_log SET status = 5 WHERE name = 'b'",
+                "INSERT INTO access_log VALUES ('d', 4)");
+        snapshot.take("access_log");
+
+        Diff diff = snapshot.diffFromPrevious("access_log");
+        assertEquals(1, diff.getAdd().size());
+        assertEquals("d", diff.getAdd().get(0).get(0));
+        assertEquals(1, diff.getModify().size());
+        assertEquals(1, diff.getDelete().size());
+        assertEquals("a", diff.getDelete().get(0).get(0));
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:async");
+        snapshot.setParallelism(2);
+        execute("INSERT INTO emp(name, age) values ('kawasima', 3)");
+        CompletableFuture.allOf(snapshot.takeAsync("emp", "dept").values().toArray(new CompletableFuture<?>[0])).get();
+        assertEquals(snapshot.getVersioning().getCurrentVersionId("EMP"),
+                snapshot.getVersioning().getCurrentVersionId("DEPT"));
+        execute("UPDATE emp SET age = 4");
+
+        Map<String, CompletableFuture<Void>> futures = snapshot.takeAsync("emp", "no_such_table");
+        assertEquals(Arrays.asList("EMP", "NO_SUCH_TABLE"), new ArrayList<>(futures.keySet()));
+        Diff diff = futures.get("EMP").thenCompose(v -> snapshot.diffAsync("emp")).get();
+        assertEquals(1, diff.getModify().size());
+        try {
+            futures.get("NO_SUCH_TABLE").get();
+            fail("The missing table should fail.");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testTypedComparison() throws SQLException {
+        execute("DROP TABLE IF EXISTS document",
+                "CREATE TABLE document (ID bigint, PRICE decimal(10,3), CONTENT blob, PRIMARY KEY (id))",
+                "INSERT INTO document VALUES (1, 1.000, X'0102'), (2, 2.000, X'0304')");
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:typed");
+        ComparisonPolicy policy = new ComparisonPolicy();
+        policy.setNumericTolerance(new BigDecimal("0.01"));
+        snapshot.setComparisonPolicy(policy);
+        snapshot.take("document");
+        execute("UPDATE document SET price = 1.004 WHERE id = 1",
+                "UPDATE document SET content = X'0305' WHERE id = 2");
+        snapshot.take("document");
+
+        Diff diff = snapshot.diffFromPrevious("document");
+        assertEquals(1, diff.getModify().size());
+        Row row = diff.getModify().get(0);
+        assertEquals("2", row.get(0));
+        assertEquals("2.000", row.get(1));
+        assertTrue(((Object[]) row.get(2))[0].toString().startsWith("BLOB(2,"));
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testBatching() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:batching");
+        snapshot.setBatchSize(10);
+        snapshot.setCommitInterval(20);
+        insertEmps(25);
+        snapshot.take("emp");
+        CopyStatistics statistics = snapshot.getCopyStatistics("emp");
+        assertEquals(25, statistics.getRows());
+        assertEquals(3, statistics.getBatches());
+        assertEquals(2, statistics.getCommits());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testPipelined() throws SQLException {
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:pipelined");
+        snapshot.setPipelineBufferSize(4);
+        snapshot.setFetchSize(8);
+        snapshot.take("emp");
+        insertEmps(25);
+        snapshot.take("emp");
+        assertEquals(25, snapshot.getCopyStatistics("emp").getRows());
+        assertEquals(25, snapshot.diffFromPrevious("emp").getAdd().size());
+        snapshot.dispose();
+    }
+
+    @Test
+    public void testPipelinedBlob() throws SQLException {
+        try (Connection targetConn = ds.getConnection()) {
+            try (Statement stmt = targetConn.createStatement()) {
+                stmt.executeUpdate("DROP TABLE IF EXISTS document");
+                stmt.executeUpdate("CREATE TABLE document (ID bigint, CONTENT blob, PRIMARY KEY (id))");
+            }
+            try (PreparedStatement stmt = targetConn.prepareStatement("INSERT INTO document VALUES (?, ?)")) {
+                for (int i = 0; i < 10; i++) {
+                    byte[] content = new byte[4096];
+                    Arrays.fill(content, (byte) i);
+                    stmt.setLong(1, i);
+                    stmt.setBytes(2, content);
+                    stmt.executeUpdate();
+                }
+            }
+        }
+        TableSnapshot snapshot = new TableSnapshot(ds, "jdbc:h2:mem:pipelinedBlob");
+        snapshot.setPipelineBufferSize(2);
+        snapshot.setFetchSize(2);
+        snapshot.take("document");
+        try (Connection targetConn = ds.getConnection();
+             PreparedStatement stmt = targetConn.prepareStatement("UPDATE document SET content = ? WHERE id = 3")) {
+            stmt.setBytes(1, new byte[4096]);
+            stmt.executeUpdate();
+        }
+        snapshot.take("document");
+        assertEquals(10, snapshot.getCopyStatistics("document").getRows());
+        Diff diff = snapshot.diffFromPrevious("document");
+        assertEquals(1, diff.getModify().size());
+        assertEquals("3", diff.getModify().get(0).get(0));
+
+        // The buffered content hashes the same as the content copied on a single thread
+        snapshot.setPipelineBufferSize(0);
+        snapshot.take("document");
+        assertEquals(0, snapshot.diffFromPrevious("document").getModify().size());
         snapshot.dispose();
     }
 }
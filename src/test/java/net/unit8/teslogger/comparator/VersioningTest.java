@@ -4,7 +4,12 @@ import org.junit.Test;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
 
 /**
  * @author kawasima
@@ -19,4 +24,79 @@ public class VersioningTest {
             System.out.println(versioning.getNextVersion(new String[]{"TEST_TABLE"}));
         }
     }
+
+    @Test
+    public void testIndex() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:index")) {
+            conn.setAutoCommit(false);
+            Versioning versioning = new Versioning(conn);
+            long v1 = versioning.getNextVersion(new String[]{"A", "B"});
+            long v2 = versioning.getNextVersion(new String[]{"A"});
+            long v3 = versioning.getNextVersion(new String[]{"A", "B"});
+            versioning.setChecksum("A", v2, new TableChecksum(3, 42));
+
+            assertEquals(v3, versioning.getCurrentVersionId("A"));
+            assertEquals(v2, versioning.getPreviousVersionId("A"));
+            assertEquals(v1, versioning.getPreviousVersionId("B"));
+            assertEquals(Arrays.asList(v1, v2, v3), versioning.getVersionIdsBetween("A", v1, v3));
+            assertFalse(versioning.hasVersion("B", v2));
+
+            // A new instance sees the same versions.
+            Versioning reloaded = new Versioning(conn);
+            assertEquals(Arrays.asList(v3, v2, v1), reloaded.getVersionIds("A", 10));
+            assertEquals(new TableChecksum(3, 42), reloaded.getChecksum("A", v2));
+        }
+    }
+
+    @Test
+    public void testPrune() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:prune")) {
+            conn.setAutoCommit(false);
+            Versioning versioning = new Versioning(conn);
+            try (Statement stmt = conn.createStatement()) {
+                for (int i = 0; i < 3; i++) {
+                    long version = versioning.getNextVersion(new String[]{"A"});
+                    stmt.execute("CREATE TABLE " + Versioning.versionedName("A", version) + "(id int)");
+                }
+                long current = versioning.getCurrentVersionId("A");
+
+                assertEquals(2, versioning.prune("A", 1).size());
+                assertEquals(Arrays.asList(current), versioning.getVersionIds("A", 10));
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT count(*) FROM information_schema.tables WHERE table_name LIKE 'A\\_%'")) {
+                    rs.next();
+                    assertEquals(1, rs.getInt(1));
+                }
+                try (ResultSet rs = stmt.executeQuery("SELECT count(*) FROM versions")) {
+                    rs.next();
+                    assertEquals(1, rs.getInt(1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void statementsEndAtTheEndOfLines() {
+        assertEquals(Arrays.asList("CREATE TABLE a (\n  id bigint\n)", "ALTER TABLE a ADD COLUMN b bigint", "SELECT ';' FROM a"),
+                Versioning.statements("CREATE TABLE a (\n  id bigint\n);\n\nALTER TABLE a ADD COLUMN b bigint;\r\nSELECT ';' FROM a"));
+    }
+
+    @Test
+    public void tablesAddedToAVersion() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:added")) {
+            conn.setAutoCommit(false);
+            Versioning versioning = new Versioning(conn);
+            long shared = versioning.newVersion();
+            long later = versioning.getNextVersion(new String[]{"B"});
+            versioning.addTable(shared, "A");
+            assertEquals(shared, versioning.getCurrentVersionId("A"));
+            try {
+                versioning.addTable(shared, "B");
+                fail("B already has a later version.");
+            } catch (IllegalStateException expected) {
+                assertEquals(later, versioning.getCurrentVersionId("B"));
+            }
+            assertEquals(Arrays.asList(shared), new Versioning(conn).getVersionIds("A", 10));
+        }
+    }
 }